@@ -0,0 +1,19 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+DB=$USER"_DB"
+
+# multiply the loaded data, e.g. SCALE=10 ./bench.sh
+if [ -n "$SCALE" ] && [ "$SCALE" -gt 1 ]; then
+   psql -h localhost -p $PGPORT -v scale=$SCALE $DB < $DIR/../../sql/src/scale_data.sql
+fi
+
+# compile the benchmarks
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar -sourcepath $DIR/../src $DIR/../src/RetailBenchmark.java
+
+# run the benchmarks; pass -Dbench.* options as arguments,
+# e.g. ./bench.sh -Dbench.threads=4 -Dbench.baseline=baseline.csv
+java "$@" -cp $DIR/../classes:$DIR/../lib/pg73jdbc3.jar RetailBenchmark $DB $PGPORT $USER
@@ -7,7 +7,7 @@ export PATH=$JAVA_HOME/bin:$PATH
 psql -h localhost -p $PGPORT gloza013_DB < /extra/gloza013/project/sql/src/triggers.sql
 
 # compile the java program
-javac -d $DIR/../classes $DIR/../src/Retail.java
+javac -d $DIR/../classes -cp $DIR/../lib/pg73jdbc3.jar -sourcepath $DIR/../src $DIR/../src/Retail.java
 
 #run the java program
 #Use your database name, port number and login
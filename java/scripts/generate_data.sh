@@ -0,0 +1,14 @@
+#!/bin/bash
+DIR="$( cd "$( dirname "${BASH_SOURCE[0]}" )" && pwd )"
+
+export JAVA_HOME=/usr/csshare/pkgs/jdk1.7.0_17
+export PATH=$JAVA_HOME/bin:$PATH
+
+# usage: ./generate_data.sh <outDir> <scale> [-Dgen.* options]
+# load the result by pointing the COPY paths of load_data.sql at <outDir>
+OUT=$1
+SCALE=$2
+shift 2
+
+javac -d $DIR/../classes -sourcepath $DIR/../src $DIR/../src/DataGenerator.java
+java "$@" -cp $DIR/../classes DataGenerator $DIR/../../data $OUT $SCALE
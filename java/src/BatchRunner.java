@@ -0,0 +1,329 @@
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Runs Retail operations from a command script instead of the interactive
+ * menus, e.g. to replay recorded traffic or run bulk jobs.  Every line is
+ * one command; arguments are separated by blanks and may be quoted with
+ * double quotes.  Blank lines and lines starting with '#' are skipped.
+ *
+ *    login <name> <password>          logout
+ *    stores                           products <storeID>
+ *    order <storeID> <product> <units>
+ *    orders [<beforeOrderNumber>]
+ *    update-units <storeID> <product> <units>
+ *    update-price <storeID> <product> <price>
+ *    supply <storeID> <product> <warehouseID> <units>
+ *    updates                          popular-products
+ *    popular-customers                users <part of name>
+ *    import-orders <file>             metrics <file>
+ *
+ * The commands go through the same Retail methods as the menus.  Every
+ * command prints one line with its status, latency and result, and
+ * printSummary() reports the latency distribution per command.  Commands
+ * are also recorded as actions in Retail's metrics, which "metrics" writes
+ * to a file.
+ *
+ * "import-orders" reads a file of customerID,storeID,productName,units
+ * lines and inserts them through Retail.importOrders, in chunks of
+ * retail.batchSize rows.
+ *
+ */
+public class BatchRunner {
+
+   // the commands dispatch() knows; anything else is recorded as "unknown",
+   // so clients cannot add metrics entries at will.
+   private static final Set<String> COMMANDS = new HashSet<String>(Arrays.asList(
+      "login", "logout", "metrics", "stores", "products", "order", "orders", "update-units",
+      "update-price", "supply", "updates", "popular-products", "popular-customers", "users",
+      "import-orders"));
+
+   private final Retail _esql;
+   private final boolean _summary;
+   private Session _session = null;
+
+   // command -> latencies in nanoseconds, failures included.
+   private final Map<String, List<Long>> _latencies = new TreeMap<String, List<Long>>();
+   private final Map<String, Integer> _failures = new TreeMap<String, Integer>();
+
+   public BatchRunner(Retail esql) {
+      this(esql, true);
+   }
+
+   /**
+    * @param esql the data access layer the commands run against
+    * @param summary whether latencies are kept for printSummary(); long
+    *        lived runners, such as server sessions, rely on the metrics
+    */
+   public BatchRunner(Retail esql, boolean summary) {
+      this._esql = esql;
+      this._summary = summary;
+   }
+
+   /**
+    * Runs every command read from a script.
+    *
+    * @param script the commands, one per line
+    * @param out where the result lines are printed
+    * @return the number of commands that failed
+    * @throws java.io.IOException when the script could not be read
+    */
+   public int run(BufferedReader script, PrintStream out) throws IOException {
+      int failed = 0;
+      int lineNumber = 0;
+      String line;
+      while ((line = script.readLine()) != null) {
+         lineNumber++;
+         String result = execute(line);
+         if (result == null)
+            continue;
+         if (result.startsWith("error"))
+            failed++;
+         out.println(lineNumber + " " + result);
+      }//end while
+      return failed;
+   }//end run
+
+   /**
+    * Runs one command.
+    *
+    * @param line the command line
+    * @return "ok|error <command> <latency> <result>", or null for a blank
+    *         or comment line
+    */
+   public String execute(String line) {
+      List<String> args = tokenize(line);
+      if (args.isEmpty() || args.get(0).startsWith("#"))
+         return null;
+      String command = args.get(0);
+      long start = System.nanoTime();
+      String recorded = COMMANDS.contains(command) ? command : "unknown";
+      Metrics.Action action = this._esql.getMetrics().begin(recorded);
+      String result;
+      boolean ok;
+      try {
+         result = dispatch(command, args.subList(1, args.size()));
+         ok = true;
+      }catch (Exception e) {
+         result = String.valueOf(e.getMessage()).replace('\n', ' ');
+         ok = false;
+      }finally {
+         this._esql.getMetrics().end(action);
+      }//end try
+      long elapsed = System.nanoTime() - start;
+      if (this._summary)
+         record(recorded, elapsed, ok);
+      return String.format("%s %s %.3fms %s", ok ? "ok" : "error", command, elapsed / 1e6, result);
+   }//end execute
+
+   /**
+    * Prints count, failures and latency percentiles of every command run.
+    */
+   public synchronized void printSummary(PrintStream out) {
+      out.println(String.format("%-18s %7s %6s %10s %10s %10s %10s",
+                                "command", "count", "errors", "avg ms", "p50 ms", "p99 ms", "max ms"));
+      for (Map.Entry<String, List<Long>> e : this._latencies.entrySet()) {
+         long[] sorted = new long[e.getValue().size()];
+         long total = 0;
+         for (int i = 0; i < sorted.length; ++i) {
+            sorted[i] = e.getValue().get(i).longValue();
+            total += sorted[i];
+         }//end for
+         Arrays.sort(sorted);
+         Integer errors = this._failures.get(e.getKey());
+         out.println(String.format("%-18s %7d %6d %10.3f %10.3f %10.3f %10.3f",
+                                   e.getKey(), sorted.length, errors == null ? 0 : errors.intValue(),
+                                   total / 1e6 / sorted.length, percentile(sorted, 0.50) / 1e6,
+                                   percentile(sorted, 0.99) / 1e6, sorted[sorted.length - 1] / 1e6));
+      }//end for
+   }//end printSummary
+
+   private String dispatch(String command, List<String> args) throws Exception {
+      if (command.equals("login")) {
+         expect(args, 2);
+         Session session = Session.login(this._esql, args.get(0), args.get(1));
+         if (session == null)
+            throw new IllegalArgumentException("Invalid login");
+         this._session = session;
+         return session.getName() + " " + session.getType();
+      }//end if
+      if (command.equals("metrics")) {
+         expect(args, 1);
+         PrintStream out = new PrintStream(new FileOutputStream(args.get(0)));
+         try {
+            this._esql.dumpMetrics(out);
+         }finally {
+            out.close();
+         }//end try
+         return args.get(0);
+      }//end if
+      if (command.equals("logout")) {
+         expect(args, 0);
+         this._session = null;
+         return "";
+      }//end if
+
+      Session session = session();
+      if (command.equals("stores")) {
+         expect(args, 0);
+         StringBuilder ids = new StringBuilder();
+         for (StoreIndex.Hit hit : this._esql.storesFor(session))
+            ids.append(ids.length() == 0 ? "" : ",").append(hit.store.storeID);
+         return ids.toString();
+      }else if (command.equals("products")) {
+         expect(args, 1);
+         return String.valueOf(this._esql.getCatalog().getProducts(integer(args.get(0))).size());
+      }else if (command.equals("order")) {
+         expect(args, 3);
+         return "#" + this._esql.orderFor(session, integer(args.get(0)), args.get(1), integer(args.get(2)));
+      }else if (command.equals("orders")) {
+         int before = args.isEmpty() ? Integer.MAX_VALUE : integer(args.get(0));
+         return String.valueOf(this._esql.orderHistory(session.getUserID(), before, Retail.PAGE_SIZE).size());
+      }else if (command.equals("update-units")) {
+         expect(args, 3);
+         this._esql.updateProductFor(session, integer(args.get(0)), args.get(1), Integer.valueOf(integer(args.get(2))), null);
+         return "";
+      }else if (command.equals("update-price")) {
+         expect(args, 3);
+         this._esql.updateProductFor(session, integer(args.get(0)), args.get(1), null, Double.valueOf(args.get(2)));
+         return "";
+      }else if (command.equals("supply")) {
+         expect(args, 4);
+         this._esql.supplyRequestFor(session, integer(args.get(0)), args.get(1), integer(args.get(2)), integer(args.get(3)));
+         return "";
+      }else if (command.equals("updates")) {
+         expect(args, 0);
+         Integer manager = session.isAdmin() ? null : Integer.valueOf(session.getUserID());
+         return String.valueOf(this._esql.updateHistory(manager, null, null, null, null, null, Retail.PAGE_SIZE).size());
+      }else if (command.equals("popular-products")) {
+         expect(args, 0);
+         return String.valueOf(this._esql.popularProducts(session, 5).size());
+      }else if (command.equals("popular-customers")) {
+         expect(args, 0);
+         return String.valueOf(this._esql.popularCustomers(session, 5).size());
+      }else if (command.equals("import-orders")) {
+         expect(args, 1);
+         return String.valueOf(this._esql.importOrders(session, readOrders(args.get(0))));
+      }else if (command.equals("users")) {
+         expect(args, 1);
+         if (!session.isAdmin())
+            throw new IllegalArgumentException("You are not authorised to view users.");
+         return String.valueOf(this._esql.searchUsers(args.get(0), Retail.SEARCH_LIMIT).size());
+      }//end if
+      throw new IllegalArgumentException("Unknown command " + command);
+   }//end dispatch
+
+   // reads customerID,storeID,productName,units lines; blank lines and
+   // lines starting with '#' are skipped.
+   private static List<Object[]> readOrders(String file) throws IOException {
+      List<Object[]> rows = new ArrayList<Object[]>();
+      BufferedReader in = new BufferedReader(new FileReader(file));
+      try {
+         int lineNumber = 0;
+         String line;
+         while ((line = in.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty() || line.trim().startsWith("#"))
+               continue;
+            String[] fields = line.split(",", -1);
+            if (fields.length != 4)
+               throw new IllegalArgumentException(file + ":" + lineNumber + ": expected 4 fields, got " + fields.length);
+            rows.add(new Object[] { Integer.valueOf(integer(fields[0].trim())), Integer.valueOf(integer(fields[1].trim())),
+                                    fields[2].trim(), Integer.valueOf(integer(fields[3].trim())) });
+         }//end while
+      }finally {
+         in.close();
+      }//end try
+      return rows;
+   }//end readOrders
+
+   // the logged in user, reloaded if the row changed.
+   private Session session() throws Exception {
+      if (this._session == null)
+         throw new IllegalStateException("Not logged in");
+      if (!this._session.validate(this._esql)) {
+         this._session = null;
+         throw new IllegalStateException("The user no longer exists");
+      }//end if
+      return this._session;
+   }//end session
+
+   private synchronized void record(String command, long nanos, boolean ok) {
+      List<Long> latencies = this._latencies.get(command);
+      if (latencies == null) {
+         latencies = new ArrayList<Long>();
+         this._latencies.put(command, latencies);
+      }//end if
+      latencies.add(Long.valueOf(nanos));
+      if (!ok) {
+         Integer errors = this._failures.get(command);
+         this._failures.put(command, Integer.valueOf(errors == null ? 1 : errors.intValue() + 1));
+      }//end if
+   }//end record
+
+   private static long percentile(long[] sorted, double p) {
+      int i = (int) Math.ceil(p * sorted.length) - 1;
+      return sorted[Math.max(0, Math.min(sorted.length - 1, i))];
+   }
+
+   private static void expect(List<String> args, int count) {
+      if (args.size() != count)
+         throw new IllegalArgumentException("Expected " + count + " argument(s), got " + args.size());
+   }
+
+   private static int integer(String value) {
+      try {
+         return Integer.parseInt(value);
+      }catch (NumberFormatException e) {
+         throw new IllegalArgumentException("Not a number: " + value);
+      }//end try
+   }
+
+   /**
+    * Splits a command line at blanks; double quotes group words and a
+    * backslash escapes the next character inside them.
+    */
+   static List<String> tokenize(String line) {
+      List<String> tokens = new ArrayList<String>();
+      StringBuilder token = null;
+      boolean quoted = false;
+      for (int i = 0; i < line.length(); ++i) {
+         char c = line.charAt(i);
+         if (quoted) {
+            if (c == '\\' && i + 1 < line.length())
+               token.append(line.charAt(++i));
+            else if (c == '"')
+               quoted = false;
+            else
+               token.append(c);
+         }else if (c == '"') {
+            if (token == null)
+               token = new StringBuilder();
+            quoted = true;
+         }else if (Character.isWhitespace(c)) {
+            if (token != null) {
+               tokens.add(token.toString());
+               token = null;
+            }//end if
+         }else {
+            if (token == null)
+               token = new StringBuilder();
+            token.append(c);
+         }//end if
+      }//end for
+      if (token != null)
+         tokens.add(token.toString());
+      return tokens;
+   }//end tokenize
+
+}//end BatchRunner
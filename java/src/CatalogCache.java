@@ -0,0 +1,205 @@
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-process, read-through cache of the catalog tables: stores,
+ * per-store product lists and warehouses.  Entries are loaded on the first
+ * read and kept until they are invalidated or pushed out by the least
+ * recently used eviction once maxEntries entries are cached.
+ *
+ * Writes made by this process invalidate the affected entries directly;
+ * writes made by other sessions reach the cache through CatalogListener,
+ * which turns the NOTIFY events of the catalog triggers into invalidations.
+ * The triggers do not notify for stock-only updates, so the numberOfUnits
+ * of a cached product may not show orders placed by other sessions.
+ *
+ * Loads run outside the cache lock.  Every region carries a generation
+ * counter that invalidation bumps, so a load that raced with an
+ * invalidation is returned to its caller but not cached.
+ *
+ */
+public class CatalogCache {
+
+   // LRU map that drops its eldest entry once it holds more than capacity.
+   private static class Lru<K, V> extends LinkedHashMap<K, V> {
+      private static final long serialVersionUID = 1L;
+
+      private final int _capacity;
+
+      Lru(int capacity) {
+         super(16, 0.75f, true);
+         this._capacity = capacity;
+      }
+
+      protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+         return size() > this._capacity;
+      }
+   }//end Lru
+
+   private final Retail _esql;
+
+   // guarded by this.
+   private final Lru<Integer, Store> _stores;
+   private final Lru<Integer, List<Product>> _products;
+   private List<Warehouse> _warehouses = null;
+   private long _storeGeneration = 0;
+   private long _productGeneration = 0;
+   private long _warehouseGeneration = 0;
+
+   // hit/miss counters, guarded by this.
+   private long _hits = 0;
+   private long _misses = 0;
+
+   /**
+    * Creates an empty catalog cache.
+    *
+    * @param esql the database the catalog is read from
+    * @param maxEntries maximum number of stores, and of product lists, kept
+    */
+   public CatalogCache(Retail esql, int maxEntries) {
+      this._esql = esql;
+      this._stores = new Lru<Integer, Store>(maxEntries);
+      this._products = new Lru<Integer, List<Product>>(maxEntries);
+   }//end CatalogCache
+
+   /**
+    * @return the store, or null if there is no such store
+    * @throws java.sql.SQLException when the store could not be loaded
+    */
+   public Store getStore(int storeID) throws SQLException {
+      Integer key = Integer.valueOf(storeID);
+      long generation;
+      synchronized (this) {
+         Store cached = this._stores.get(key);
+         if (cached != null) {
+            this._hits++;
+            return cached;
+         }//end if
+         this._misses++;
+         generation = this._storeGeneration;
+      }//end synchronized
+      Store store = this._esql.queryForObject("SELECT " + Store.COLUMNS + " FROM Store WHERE storeID = ?",
+                                              Store.MAPPER, key);
+      synchronized (this) {
+         if (store != null && generation == this._storeGeneration)
+            this._stores.put(key, store);
+      }//end synchronized
+      return store;
+   }//end getStore
+
+   /**
+    * @return the products of a store ordered by name; the list is shared
+    *         and must not be modified
+    * @throws java.sql.SQLException when the products could not be loaded
+    */
+   public List<Product> getProducts(int storeID) throws SQLException {
+      Integer key = Integer.valueOf(storeID);
+      long generation;
+      synchronized (this) {
+         List<Product> cached = this._products.get(key);
+         if (cached != null) {
+            this._hits++;
+            return cached;
+         }//end if
+         this._misses++;
+         generation = this._productGeneration;
+      }//end synchronized
+      List<Product> products = Collections.unmodifiableList(
+         this._esql.queryForList("SELECT " + Product.COLUMNS + " FROM Product WHERE storeID = ? ORDER BY productName",
+                                 Product.MAPPER, key));
+      synchronized (this) {
+         if (generation == this._productGeneration)
+            this._products.put(key, products);
+      }//end synchronized
+      return products;
+   }//end getProducts
+
+   /**
+    * @return the product of a store, or null if the store does not sell it
+    * @throws java.sql.SQLException when the products could not be loaded
+    */
+   public Product getProduct(int storeID, String productName) throws SQLException {
+      for (Product p : getProducts(storeID))
+         if (p.productName.equals(productName))
+            return p;
+      return null;
+   }//end getProduct
+
+   /**
+    * @return every warehouse; the list is shared and must not be modified
+    * @throws java.sql.SQLException when the warehouses could not be loaded
+    */
+   public List<Warehouse> getWarehouses() throws SQLException {
+      long generation;
+      synchronized (this) {
+         if (this._warehouses != null) {
+            this._hits++;
+            return this._warehouses;
+         }//end if
+         this._misses++;
+         generation = this._warehouseGeneration;
+      }//end synchronized
+      List<Warehouse> warehouses = Collections.unmodifiableList(
+         this._esql.queryForList("SELECT " + Warehouse.COLUMNS + " FROM Warehouse ORDER BY WarehouseID",
+                                 Warehouse.MAPPER));
+      synchronized (this) {
+         if (generation == this._warehouseGeneration)
+            this._warehouses = warehouses;
+      }//end synchronized
+      return warehouses;
+   }//end getWarehouses
+
+   /**
+    * @return the warehouse, or null if there is no such warehouse
+    * @throws java.sql.SQLException when the warehouses could not be loaded
+    */
+   public Warehouse getWarehouse(int warehouseID) throws SQLException {
+      for (Warehouse w : getWarehouses())
+         if (w.warehouseID == warehouseID)
+            return w;
+      return null;
+   }//end getWarehouse
+
+   public synchronized void invalidateStores() {
+      this._storeGeneration++;
+      this._stores.clear();
+   }
+
+   public synchronized void invalidateProducts() {
+      this._productGeneration++;
+      this._products.clear();
+   }
+
+   public synchronized void invalidateProducts(int storeID) {
+      this._productGeneration++;
+      this._products.remove(Integer.valueOf(storeID));
+   }
+
+   public synchronized void invalidateWarehouses() {
+      this._warehouseGeneration++;
+      this._warehouses = null;
+   }
+
+   /**
+    * Drops every cached entry.
+    */
+   public synchronized void clear() {
+      invalidateStores();
+      invalidateProducts();
+      invalidateWarehouses();
+   }
+
+   /**
+    * @return a one-line summary of the cache size and hit rate
+    */
+   public synchronized String getStats() {
+      return String.format("stores=%d productLists=%d warehouses=%s hits=%d misses=%d",
+                           this._stores.size(), this._products.size(),
+                           this._warehouses == null ? "-" : String.valueOf(this._warehouses.size()),
+                           this._hits, this._misses);
+   }//end getStats
+
+}//end CatalogCache
@@ -0,0 +1,127 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+
+/**
+ * A daemon thread that keeps the catalog cache coherent with writes made by
+ * other sessions.  It holds one dedicated connection outside the pool,
+ * LISTENs on the channels the catalog triggers NOTIFY (see triggers.sql)
+ * and invalidates the matching part of the cache for every event.
+ *
+ * The driver only reads notifications off the socket while a query runs,
+ * so the thread issues a trivial query every pollMillis.  Notifications
+ * carry no payload, so an event drops a whole table's worth of entries.
+ * After the connection is lost every entry is dropped, since events may
+ * have been missed in between.
+ *
+ */
+public class CatalogListener extends Thread {
+
+   public static final String STORE_CHANNEL = "store_changed";
+   public static final String PRODUCT_CHANNEL = "product_changed";
+   public static final String WAREHOUSE_CHANNEL = "warehouse_changed";
+
+   // delay before reconnecting after the connection failed.
+   private static final long RETRY_MILLIS = 5000L;
+
+   private final Retail _esql;
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+   private final long _pollMillis;
+
+   private volatile boolean _running = true;
+
+   /**
+    * Creates the listener; call start() to begin listening.
+    *
+    * @param esql the application whose caches are invalidated
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param pollMillis how often pending notifications are fetched
+    */
+   public CatalogListener(Retail esql, String url, String user, String passwd, long pollMillis) {
+      super("CatalogListener");
+      setDaemon(true);
+      this._esql = esql;
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._pollMillis = pollMillis;
+   }//end CatalogListener
+
+   /**
+    * Stops the thread and closes its connection.
+    */
+   public void shutdown() {
+      this._running = false;
+      interrupt();
+   }
+
+   public void run() {
+      while (this._running) {
+         Connection connection = null;
+         try {
+            connection = DriverManager.getConnection(this._url, this._user, this._passwd);
+            Statement stmt = connection.createStatement();
+            stmt.execute("LISTEN " + STORE_CHANNEL);
+            stmt.execute("LISTEN " + PRODUCT_CHANNEL);
+            stmt.execute("LISTEN " + WAREHOUSE_CHANNEL);
+            // anything cached before LISTEN took effect may be stale.
+            this._esql.invalidateCatalog();
+            poll(connection, stmt);
+         }catch (SQLException e) {
+            if (this._running) {
+               System.err.println("Catalog listener: " + e.getMessage());
+               this._esql.invalidateCatalog();
+               pause(RETRY_MILLIS);
+            }//end if
+         }finally {
+            try {
+               if (connection != null)
+                  connection.close();
+            }catch (SQLException e) {
+               // ignored.
+            }//end try
+         }//end try
+      }//end while
+   }//end run
+
+   private void poll(Connection connection, Statement stmt) throws SQLException {
+      PGConnection pg = (PGConnection) connection;
+      while (this._running) {
+         ResultSet rs = stmt.executeQuery("SELECT 1");
+         rs.close();
+         PGNotification[] events = pg.getNotifications();
+         if (events != null) {
+            for (int i = 0; i < events.length; ++i)
+               dispatch(events[i].getName());
+         }//end if
+         pause(this._pollMillis);
+      }//end while
+   }//end poll
+
+   private void dispatch(String channel) {
+      if (STORE_CHANNEL.equals(channel))
+         this._esql.invalidateStores();
+      else if (PRODUCT_CHANNEL.equals(channel))
+         this._esql.invalidateProducts();
+      else if (WAREHOUSE_CHANNEL.equals(channel))
+         this._esql.invalidateWarehouses();
+   }//end dispatch
+
+   private void pause(long millis) {
+      try {
+         Thread.sleep(millis);
+      }catch (InterruptedException e) {
+         // shutdown() interrupts; the loop condition decides.
+      }//end try
+   }
+
+}//end CatalogListener
@@ -0,0 +1,334 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * This class defines a bounded pool of physical database connections. It
+ * hands out at most maxSize connections at a time and makes callers wait
+ * (up to maxWait) when all of them are in use. Idle connections are
+ * validated before reuse when they have not been used for a while, closed
+ * after idleTimeout, and retired once they are older than maxLifetime.
+ *
+ * Every pooled connection carries its own StatementCache.
+ *
+ */
+public class ConnectionPool {
+
+   /**
+    * A physical connection together with its prepared statements and the
+    * bookkeeping the pool needs to expire it.
+    */
+   public static class PooledConnection {
+      private final Connection _connection;
+      private final StatementCache _statements;
+      private final long _createdAt;
+      private long _lastUsed;
+
+      private PooledConnection(Connection connection, int statementCacheSize) {
+         this._connection = connection;
+         this._statements = new StatementCache(connection, statementCacheSize);
+         this._createdAt = System.currentTimeMillis();
+         this._lastUsed = this._createdAt;
+      }
+
+      public Connection getConnection() {
+         return this._connection;
+      }
+
+      public StatementCache getStatements() {
+         return this._statements;
+      }
+
+      private void close() {
+         this._statements.clear();
+         try {
+            this._connection.close();
+         }catch (SQLException e) {
+            // ignored.
+         }//end try
+      }
+   }//end PooledConnection
+
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+
+   private final int _maxSize;
+   private final long _maxWaitMillis;
+   private final long _idleTimeoutMillis;
+   private final long _maxLifetimeMillis;
+   private final long _validationIntervalMillis;
+   private final int _statementCacheSize;
+
+   // idle connections, most recently used first.
+   private final LinkedList<PooledConnection> _idle = new LinkedList<PooledConnection>();
+
+   // number of open connections, idle or borrowed.
+   private int _open = 0;
+   private boolean _closed = false;
+
+   // background sweeper that closes idle and expired connections.
+   private final Timer _evictor;
+
+   // wait-time metrics, guarded by this.
+   private long _borrowCount = 0;
+   private long _waitCount = 0;
+   private long _timeoutCount = 0;
+   private long _totalWaitNanos = 0;
+   private long _maxWaitNanos = 0;
+   private long _createdCount = 0;
+   private long _evictedCount = 0;
+
+   /**
+    * Creates a new connection pool. No connection is opened until the
+    * first call to borrow().
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param maxSize maximum number of open connections
+    * @param maxWaitMillis how long borrow() waits for a free connection
+    * @param idleTimeoutMillis idle connections older than this are closed
+    * @param maxLifetimeMillis connections older than this are retired
+    * @param validationIntervalMillis idle connections older than this are
+    *        validated before they are handed out again
+    */
+   public ConnectionPool(String url, String user, String passwd, int maxSize,
+                         long maxWaitMillis, long idleTimeoutMillis,
+                         long maxLifetimeMillis, long validationIntervalMillis) {
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._maxSize = maxSize;
+      this._maxWaitMillis = maxWaitMillis;
+      this._idleTimeoutMillis = idleTimeoutMillis;
+      this._maxLifetimeMillis = maxLifetimeMillis;
+      this._validationIntervalMillis = validationIntervalMillis;
+      this._statementCacheSize = StatementCache.DEFAULT_CAPACITY;
+
+      this._evictor = new Timer("ConnectionPool-evictor", true);
+      long period = Math.max(1000L, idleTimeoutMillis / 2);
+      this._evictor.schedule(new TimerTask() {
+         public void run() {
+            evictIdle();
+         }
+      }, period, period);
+   }//end ConnectionPool
+
+   /**
+    * Borrows a connection from the pool, opening a new one if the pool is
+    * not full yet and waiting for a release otherwise.
+    *
+    * @return a validated connection, to be handed back with release()
+    * @throws java.sql.SQLException when no connection became available in
+    *         time or a new connection could not be opened
+    */
+   public PooledConnection borrow() throws SQLException {
+      long start = System.nanoTime();
+      long deadline = start + this._maxWaitMillis * 1000000L;
+      boolean waited = false;
+      while (true) {
+         PooledConnection candidate = null;
+         boolean create = false;
+         synchronized (this) {
+            if (this._closed)
+               throw new SQLException("Connection pool is closed");
+            if (!this._idle.isEmpty()) {
+               candidate = this._idle.removeFirst();
+            }else if (this._open < this._maxSize) {
+               this._open++;
+               create = true;
+            }else {
+               long remaining = deadline - System.nanoTime();
+               if (remaining <= 0) {
+                  this._timeoutCount++;
+                  throw new SQLException("Timed out after " + this._maxWaitMillis
+                                         + " ms waiting for a database connection");
+               }//end if
+               waited = true;
+               try {
+                  this.wait(Math.max(1L, remaining / 1000000L));
+               }catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                  throw new SQLException("Interrupted while waiting for a database connection");
+               }//end try
+               continue;
+            }//end if
+         }//end synchronized
+
+         if (create)
+            candidate = open();
+         else if (!usable(candidate)) {
+            discard(candidate);
+            continue;
+         }//end if
+
+         candidate._lastUsed = System.currentTimeMillis();
+         recordBorrow(System.nanoTime() - start, waited);
+         return candidate;
+      }//end while
+   }//end borrow
+
+   /**
+    * Hands a connection back to the pool. Connections that were left in a
+    * transaction or have outlived maxLifetime are closed instead.
+    *
+    * @param pc the connection obtained from borrow()
+    */
+   public void release(PooledConnection pc) {
+      if (pc == null)
+         return;
+      boolean keep;
+      try {
+         keep = pc._connection.getAutoCommit() && !pc._connection.isClosed();
+      }catch (SQLException e) {
+         keep = false;
+      }//end try
+      long now = System.currentTimeMillis();
+      if (keep && now - pc._createdAt < this._maxLifetimeMillis) {
+         synchronized (this) {
+            if (!this._closed) {
+               pc._lastUsed = now;
+               this._idle.addFirst(pc);
+               this.notify();
+               return;
+            }//end if
+         }//end synchronized
+      }//end if
+      discard(pc);
+   }//end release
+
+   /**
+    * Closes a connection that is known to be broken instead of returning
+    * it to the pool.
+    *
+    * @param pc the connection obtained from borrow()
+    */
+   public void invalidate(PooledConnection pc) {
+      if (pc != null)
+         discard(pc);
+   }
+
+   /**
+    * Closes every idle connection and refuses further borrows. Borrowed
+    * connections are closed when they are released.
+    */
+   public void close() {
+      List<PooledConnection> idle;
+      synchronized (this) {
+         this._closed = true;
+         idle = new ArrayList<PooledConnection>(this._idle);
+         this._idle.clear();
+         this.notifyAll();
+      }//end synchronized
+      this._evictor.cancel();
+      for (PooledConnection pc : idle)
+         discard(pc);
+   }//end close
+
+   /**
+    * @return a one-line summary of pool usage and wait times
+    */
+   public synchronized String getStats() {
+      double avgWaitMs = this._borrowCount == 0 ? 0.0
+                       : this._totalWaitNanos / 1e6 / this._borrowCount;
+      return String.format("open=%d idle=%d max=%d borrows=%d waits=%d timeouts=%d "
+                           + "avgWait=%.3fms maxWait=%.3fms created=%d evicted=%d",
+                           this._open, this._idle.size(), this._maxSize, this._borrowCount,
+                           this._waitCount, this._timeoutCount, avgWaitMs,
+                           this._maxWaitNanos / 1e6, this._createdCount, this._evictedCount);
+   }//end getStats
+
+   public synchronized long getBorrowCount() { return this._borrowCount; }
+   public synchronized long getWaitCount() { return this._waitCount; }
+   public synchronized long getTimeoutCount() { return this._timeoutCount; }
+   public synchronized long getTotalWaitNanos() { return this._totalWaitNanos; }
+   public synchronized long getMaxWaitNanos() { return this._maxWaitNanos; }
+
+   private PooledConnection open() throws SQLException {
+      try {
+         Connection connection = DriverManager.getConnection(this._url, this._user, this._passwd);
+         synchronized (this) {
+            this._createdCount++;
+         }//end synchronized
+         return new PooledConnection(connection, this._statementCacheSize);
+      }catch (SQLException e) {
+         synchronized (this) {
+            this._open--;
+            this.notify();
+         }//end synchronized
+         throw e;
+      }//end try
+   }//end open
+
+   // checks lifetime, and runs a trivial query on connections that sat idle.
+   private boolean usable(PooledConnection pc) {
+      long now = System.currentTimeMillis();
+      if (now - pc._createdAt >= this._maxLifetimeMillis)
+         return false;
+      if (now - pc._lastUsed < this._validationIntervalMillis)
+         return true;
+      Statement stmt = null;
+      try {
+         stmt = pc._connection.createStatement();
+         ResultSet rs = stmt.executeQuery("SELECT 1");
+         rs.close();
+         return true;
+      }catch (SQLException e) {
+         return false;
+      }finally {
+         try {
+            if (stmt != null)
+               stmt.close();
+         }catch (SQLException e) {
+            // ignored.
+         }//end try
+      }//end try
+   }//end usable
+
+   private void discard(PooledConnection pc) {
+      pc.close();
+      synchronized (this) {
+         this._open--;
+         this._evictedCount++;
+         this.notify();
+      }//end synchronized
+   }
+
+   private synchronized void recordBorrow(long waitNanos, boolean waited) {
+      this._borrowCount++;
+      this._totalWaitNanos += waitNanos;
+      if (waited)
+         this._waitCount++;
+      if (waitNanos > this._maxWaitNanos)
+         this._maxWaitNanos = waitNanos;
+   }
+
+   // closes idle connections past idleTimeout or maxLifetime.
+   private void evictIdle() {
+      List<PooledConnection> expired = new ArrayList<PooledConnection>();
+      long now = System.currentTimeMillis();
+      synchronized (this) {
+         Iterator<PooledConnection> it = this._idle.iterator();
+         while (it.hasNext()) {
+            PooledConnection pc = it.next();
+            if (now - pc._lastUsed >= this._idleTimeoutMillis
+                || now - pc._createdAt >= this._maxLifetimeMillis) {
+               it.remove();
+               expired.add(pc);
+            }//end if
+         }//end while
+      }//end synchronized
+      for (PooledConnection pc : expired)
+         discard(pc);
+   }//end evictIdle
+
+}//end ConnectionPool
@@ -0,0 +1,98 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The heaviest customers by units ordered, kept in memory for the popular
+ * customers report.  One Space-Saving summary per store ranks that store's
+ * customers, and a global one ranks (store, customer) pairs across every
+ * store.  Counts are upper bounds within each summary's error.
+ *
+ * Retail seeds the ranking from Orders at startup and records every order
+ * it places afterwards; orders placed by other clients show up at the next
+ * start.
+ *
+ */
+public class CustomerRanking {
+
+   /**
+    * A customer's estimated units ordered at one store.
+    */
+   public static class Hit {
+      public final int storeID;
+      public final int customerID;
+      public final long units;
+
+      Hit(int storeID, int customerID, long units) {
+         this.storeID = storeID;
+         this.customerID = customerID;
+         this.units = units;
+      }
+   }//end Hit
+
+   private static final Comparator<Hit> BY_UNITS = new Comparator<Hit>() {
+      public int compare(Hit a, Hit b) {
+         return a.units < b.units ? 1 : a.units > b.units ? -1 : 0;
+      }
+   };
+
+   private final int _capacity;
+   private final SpaceSaving<Long> _global;
+   private final ConcurrentHashMap<Integer, SpaceSaving<Integer>> _stores =
+      new ConcurrentHashMap<Integer, SpaceSaving<Integer>>();
+
+   /**
+    * @param capacity the number of counters of every summary
+    */
+   public CustomerRanking(int capacity) {
+      this._capacity = capacity;
+      this._global = new SpaceSaving<Long>(capacity);
+   }
+
+   /**
+    * Records units ordered by a customer at a store.
+    */
+   public void record(int storeID, int customerID, long units) {
+      SpaceSaving<Integer> store = this._stores.get(Integer.valueOf(storeID));
+      if (store == null) {
+         SpaceSaving<Integer> created = new SpaceSaving<Integer>(this._capacity);
+         store = this._stores.putIfAbsent(Integer.valueOf(storeID), created);
+         if (store == null)
+            store = created;
+      }//end if
+      store.offer(Integer.valueOf(customerID), units);
+      this._global.offer(Long.valueOf(((long) storeID << 32) | (customerID & 0xffffffffL)), units);
+   }//end record
+
+   /**
+    * @return at most n (store, customer) pairs over every store, heaviest first
+    */
+   public List<Hit> top(int n) {
+      List<Hit> hits = new ArrayList<Hit>();
+      for (SpaceSaving.Entry<Long> e : this._global.top(n)) {
+         long key = e.key.longValue();
+         hits.add(new Hit((int) (key >> 32), (int) key, e.count));
+      }//end for
+      return hits;
+   }//end top
+
+   /**
+    * @return at most n (store, customer) pairs of the given stores, heaviest first
+    */
+   public List<Hit> top(Collection<Integer> storeIDs, int n) {
+      List<Hit> hits = new ArrayList<Hit>();
+      for (Integer storeID : storeIDs) {
+         SpaceSaving<Integer> store = this._stores.get(storeID);
+         if (store == null)
+            continue;
+         for (SpaceSaving.Entry<Integer> e : store.top(n))
+            hits.add(new Hit(storeID.intValue(), e.key.intValue(), e.count));
+      }//end for
+      Collections.sort(hits, BY_UNITS);
+      return hits.subList(0, Math.min(n, hits.size()));
+   }//end top
+
+}//end CustomerRanking
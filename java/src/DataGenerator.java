@@ -0,0 +1,543 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates a larger data set like the one in data/*.csv.  The generator
+ * writes users.csv, stores.csv, products.csv, warehouse.csv, orders.csv,
+ * productUpdates.csv and productSupplyRequests.csv, with the same headers
+ * as the source files, so load_data.sql can load them.
+ *
+ * Every table gets scale times the rows of its source file.  Product names,
+ * prices, user names and value ranges come from the source files.
+ *
+ *  - userID 1 is copied from the source as is, so the Admin login still
+ *    works.  Every stride-th user is a manager and the rest are customers,
+ *    in the same ratio as the source.
+ *  - Stores and warehouses lie around a few cluster centres.  Users lie
+ *    around the same centres, so most customers have stores nearby.
+ *  - Every store sells every product name.  Each store is run by a manager.
+ *  - Orders choose customers, stores and products from Zipf distributions,
+ *    so a few customers and products account for most of the orders.
+ *  - Order, update and request times grow with their numbers and cover
+ *    gen.days days from the first source order.
+ *
+ * Each table is split into chunks of gen.chunkRows rows.  The chunks are
+ * generated in parallel, each with its own random generator seeded from
+ * gen.seed, so the output does not depend on gen.threads.  Finally the
+ * chunks are concatenated behind the header.
+ *
+ *    java DataGenerator <sourceDir> <outDir> <scale>
+ *         [-Dgen.threads=<cpus>] [-Dgen.seed=166] [-Dgen.chunkRows=1000000]
+ *         [-Dgen.customerSkew=1.0] [-Dgen.productSkew=1.2] [-Dgen.storeSkew=0.6]
+ *         [-Dgen.clusters=<stores/25>] [-Dgen.days=365]
+ *
+ */
+public class DataGenerator {
+
+   /**
+    * Samples ranks 1 .. n with P(k) proportional to 1 / k^s.  Uses
+    * rejection-inversion, which takes constant time and memory for any n.
+    * The algorithm is from Hoermann and Derflinger, "Rejection-inversion to
+    * generate variates from monotone discrete distributions" (1996).
+    */
+   static class ZipfSampler {
+      private final long _n;
+      private final double _s;
+      private final double _hIntegralX1;
+      private final double _hIntegralN;
+      private final double _threshold;
+
+      ZipfSampler(long n, double s) {
+         if (n < 1 || s <= 0)
+            throw new IllegalArgumentException("Zipf needs n >= 1 and s > 0");
+         this._n = n;
+         this._s = s;
+         this._hIntegralX1 = hIntegral(1.5) - 1.0;
+         this._hIntegralN = hIntegral(n + 0.5);
+         this._threshold = 2.0 - hIntegralInverse(hIntegral(2.5) - h(2.0));
+      }
+
+      long sample(Random random) {
+         while (true) {
+            double u = this._hIntegralN + random.nextDouble() * (this._hIntegralX1 - this._hIntegralN);
+            double x = hIntegralInverse(u);
+            long k = (long) (x + 0.5);
+            if (k < 1)
+               k = 1;
+            else if (k > this._n)
+               k = this._n;
+            if (k - x <= this._threshold || u >= hIntegral(k + 0.5) - h(k))
+               return k;
+         }//end while
+      }//end sample
+
+      private double h(double x) {
+         return Math.exp(-this._s * Math.log(x));
+      }
+
+      private double hIntegral(double x) {
+         double logX = Math.log(x);
+         return helper2((1.0 - this._s) * logX) * logX;
+      }
+
+      private double hIntegralInverse(double x) {
+         double t = x * (1.0 - this._s);
+         if (t < -1.0)
+            t = -1.0;
+         return Math.exp(helper1(t) * x);
+      }
+
+      // log(1 + x) / x, accurate near 0
+      private static double helper1(double x) {
+         return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1.0 - x * (0.5 - x * (1.0 / 3.0 - 0.25 * x));
+      }
+
+      // (exp(x) - 1) / x, accurate near 0
+      private static double helper2(double x) {
+         return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1.0 + x * 0.5 * (1.0 + x / 3.0 * (1.0 + 0.25 * x));
+      }
+   }//end ZipfSampler
+
+   /**
+    * A generated table: its file, header and a row for every row number.
+    */
+   private abstract static class Table {
+      final String file;
+      final String header;
+      final long rows;
+
+      Table(String file, String header, long rows) {
+         this.file = file;
+         this.header = header;
+         this.rows = rows;
+      }
+
+      /** Appends row i, numbered from 0, without the line break. */
+      abstract void row(long i, Random random, StringBuilder line);
+   }//end Table
+
+   private static final long SECONDS_PER_DAY = 86400L;
+
+   private final File _out;
+   private final long _seed;
+   private final int _chunkRows;
+
+   // source vocabulary
+   private final String[] _admin;
+   private final List<String> _userNames = new ArrayList<String>();
+   private final List<String> _passwords = new ArrayList<String>();
+   private final List<String> _productNames = new ArrayList<String>();
+   private final List<String> _prices = new ArrayList<String>();
+   private int _minUnits = Integer.MAX_VALUE, _maxUnits = 0;
+   private int _minArea = Integer.MAX_VALUE, _maxArea = 0;
+   private int _minOrdered = Integer.MAX_VALUE, _maxOrdered = 0;
+   private int _minRequested = Integer.MAX_VALUE, _maxRequested = 0;
+   private long _firstOrder = Long.MAX_VALUE;
+
+   // generated sizes
+   private final long _users, _stores, _warehouses, _orders, _updates, _requests;
+   private final long _stride, _managers;
+   private final double[][] _centers;
+   private final long _span;
+
+   private final ZipfSampler _customerRank, _storeRank, _productRank;
+   private final long _customerMultiplier, _storeMultiplier;
+
+   public DataGenerator(File source, File out, long scale) throws IOException {
+      this._out = out;
+      this._seed = Long.getLong("gen.seed", 166L).longValue();
+      this._chunkRows = Integer.getInteger("gen.chunkRows", 1000000).intValue();
+
+      List<String[]> users = read(new File(source, "users.csv"));
+      List<String[]> stores = read(new File(source, "stores.csv"));
+      List<String[]> products = read(new File(source, "products.csv"));
+      List<String[]> warehouses = read(new File(source, "warehouse.csv"));
+      List<String[]> orders = read(new File(source, "orders.csv"));
+      List<String[]> updates = read(new File(source, "productUpdates.csv"));
+      List<String[]> requests = read(new File(source, "productSupplyRequests.csv"));
+
+      this._admin = users.get(0);
+      long managers = 0;
+      for (String[] u : users) {
+         if (u[5].equals("manager"))
+            managers++;
+         if (u != this._admin) {
+            this._userNames.add(u[1]);
+            this._passwords.add(u[2]);
+         }//end if
+      }//end for
+      for (String[] p : products) {
+         if (!this._productNames.contains(p[1])) {
+            this._productNames.add(p[1]);
+            this._prices.add(p[3]);
+         }//end if
+         this._minUnits = Math.min(this._minUnits, Integer.parseInt(p[2]));
+         this._maxUnits = Math.max(this._maxUnits, Integer.parseInt(p[2]));
+      }//end for
+      for (String[] w : warehouses) {
+         this._minArea = Math.min(this._minArea, Integer.parseInt(w[1]));
+         this._maxArea = Math.max(this._maxArea, Integer.parseInt(w[1]));
+      }//end for
+      for (String[] o : orders) {
+         this._minOrdered = Math.min(this._minOrdered, Integer.parseInt(o[4]));
+         this._maxOrdered = Math.max(this._maxOrdered, Integer.parseInt(o[4]));
+         this._firstOrder = Math.min(this._firstOrder, seconds(o[5]));
+      }//end for
+      for (String[] r : requests) {
+         this._minRequested = Math.min(this._minRequested, Integer.parseInt(r[5]));
+         this._maxRequested = Math.max(this._maxRequested, Integer.parseInt(r[5]));
+      }//end for
+
+      this._users = users.size() * scale;
+      this._stores = stores.size() * scale;
+      this._warehouses = warehouses.size() * scale;
+      this._orders = orders.size() * scale;
+      this._updates = updates.size() * scale;
+      this._requests = requests.size() * scale;
+      // at least every third user is a customer, so a manager's neighbour is one
+      this._stride = Math.max(3, Math.round((double) users.size() / Math.max(1, managers)));
+      this._managers = Math.max(1, this._users / this._stride);
+
+      int clusters = Integer.getInteger("gen.clusters", (int) Math.max(3, this._stores / 25)).intValue();
+      Random random = new Random(this._seed);
+      this._centers = new double[clusters][2];
+      for (double[] c : this._centers) {
+         c[0] = 5 + random.nextDouble() * 90;
+         c[1] = 5 + random.nextDouble() * 90;
+      }//end for
+      this._span = Long.getLong("gen.days", 365L).longValue() * SECONDS_PER_DAY;
+
+      this._customerRank = new ZipfSampler(this._users - 1, Double.parseDouble(System.getProperty("gen.customerSkew", "1.0")));
+      this._storeRank = new ZipfSampler(this._stores, Double.parseDouble(System.getProperty("gen.storeSkew", "0.6")));
+      this._productRank = new ZipfSampler(this._productNames.size(), Double.parseDouble(System.getProperty("gen.productSkew", "1.2")));
+      this._customerMultiplier = coprime(this._users - 1);
+      this._storeMultiplier = coprime(this._stores);
+   }//end DataGenerator
+
+   // the manager of a store; managers are the userIDs divisible by the stride.
+   private long managerOf(long storeID) {
+      return this._stride * (1 + (storeID - 1) % this._managers);
+   }
+
+   // a customer by popularity; ranks are scattered over the userIDs.
+   private long customer(Random random) {
+      long id = 2 + (this._customerMultiplier * (this._customerRank.sample(random) - 1)) % (this._users - 1);
+      return id % this._stride == 0 ? id - 1 : id;
+   }
+
+   private long store(Random random) {
+      return 1 + (this._storeMultiplier * (this._storeRank.sample(random) - 1)) % this._stores;
+   }
+
+   private String product(Random random) {
+      return this._productNames.get((int) this._productRank.sample(random) - 1);
+   }
+
+   private List<Table> tables() {
+      List<Table> tables = new ArrayList<Table>();
+      tables.add(new Table("users.csv", "userID,name,password,latitude,longitude,type", this._users) {
+         void row(long i, Random random, StringBuilder line) {
+            long id = i + 1;
+            if (id == 1) {
+               join(line, _admin);
+               return;
+            }//end if
+            int n = (int) ((id - 2) % _userNames.size());
+            line.append(id).append(',').append(_userNames.get(n));
+            if (id - 2 >= _userNames.size())
+               line.append(id);
+            line.append(',').append(_passwords.get(n)).append(',');
+            location(line, _centers[random.nextInt(_centers.length)], 8.0, random);
+            line.append(',').append(id % _stride == 0 ? "manager" : "customer");
+         }
+      });
+      tables.add(new Table("stores.csv", "storeID,name,latitude,longitude,managerID,dateEstablished", this._stores) {
+         void row(long i, Random random, StringBuilder line) {
+            long id = i + 1;
+            line.append(id).append(',');
+            for (int c = 0; c < 4; ++c)
+               line.append((char) ('a' + random.nextInt(26)));
+            line.append(',');
+            location(line, _centers[(int) (i % _centers.length)], 4.0, random);
+            line.append(',').append(managerOf(id)).append(',');
+            // established between 1950 and 2015, written like the source as M/D/YYYY
+            long[] date = civil(-7305 + (long) random.nextInt(23741));
+            line.append(date[1]).append('/').append(date[2]).append('/').append(date[0]);
+         }
+      });
+      tables.add(new Table("products.csv", "storeID,productName,numberOfUnits,pricePerUnit",
+                           this._stores * this._productNames.size()) {
+         void row(long i, Random random, StringBuilder line) {
+            int p = (int) (i % _productNames.size());
+            line.append(1 + i / _productNames.size()).append(',').append(_productNames.get(p)).append(',')
+                .append(between(_minUnits, _maxUnits, random)).append(',').append(_prices.get(p));
+         }
+      });
+      tables.add(new Table("warehouse.csv", "wareHouseID,area,latitude,longitude", this._warehouses) {
+         void row(long i, Random random, StringBuilder line) {
+            line.append(i + 1).append(',').append(between(_minArea, _maxArea, random)).append(',');
+            location(line, _centers[(int) (i % _centers.length)], 10.0, random);
+         }
+      });
+      tables.add(new Table("orders.csv", "orderNumber,customerID,storeID,productName,unitsOrdered,orderTime", this._orders) {
+         void row(long i, Random random, StringBuilder line) {
+            line.append(i + 1).append(',').append(customer(random)).append(',').append(store(random)).append(',')
+                .append(product(random)).append(',').append(between(_minOrdered, _maxOrdered, random)).append(',');
+            timestamp(line, i, _orders, random);
+         }
+      });
+      tables.add(new Table("productUpdates.csv", "updateNumber,managerID,storeID,productName,updatedOn", this._updates) {
+         void row(long i, Random random, StringBuilder line) {
+            long storeID = 1 + (long) (random.nextDouble() * _stores);
+            line.append(i + 1).append(',').append(managerOf(storeID)).append(',').append(storeID).append(',')
+                .append(_productNames.get(random.nextInt(_productNames.size()))).append(',');
+            timestamp(line, i, _updates, random);
+         }
+      });
+      tables.add(new Table("productSupplyRequests.csv",
+                           "requestNumber,managerID,warehouseID,storeID,productName,unitsRequested", this._requests) {
+         void row(long i, Random random, StringBuilder line) {
+            long storeID = 1 + (long) (random.nextDouble() * _stores);
+            line.append(i + 1).append(',').append(managerOf(storeID)).append(',')
+                .append(1 + (long) (random.nextDouble() * _warehouses)).append(',').append(storeID).append(',')
+                .append(_productNames.get(random.nextInt(_productNames.size()))).append(',')
+                .append(between(_minRequested, _maxRequested, random));
+         }
+      });
+      return tables;
+   }//end tables
+
+   /**
+    * Generates every table into the output directory.
+    *
+    * @param threads the number of chunks generated at once
+    */
+   public void generate(int threads) throws Exception {
+      File parts = new File(this._out, ".parts");
+      if (!parts.isDirectory() && !parts.mkdirs())
+         throw new IOException("Cannot create " + parts);
+
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      try {
+         List<Table> tables = tables();
+         Map<Table, List<Future<File>>> chunks = new LinkedHashMap<Table, List<Future<File>>>();
+         for (int t = 0; t < tables.size(); ++t) {
+            final Table table = tables.get(t);
+            List<Future<File>> files = new ArrayList<Future<File>>();
+            for (long c = 0; c * this._chunkRows < table.rows; ++c) {
+               final long from = c * this._chunkRows;
+               final long to = Math.min(table.rows, from + this._chunkRows);
+               final File part = new File(parts, table.file + "." + c);
+               final Random random = new Random(this._seed * 1000003L + t * 7919L + c * 104729L);
+               files.add(pool.submit(new java.util.concurrent.Callable<File>() {
+                  public File call() throws IOException {
+                     writeChunk(table, from, to, random, part);
+                     return part;
+                  }
+               }));
+            }//end for
+            chunks.put(table, files);
+         }//end for
+
+         for (Map.Entry<Table, List<Future<File>>> e : chunks.entrySet()) {
+            long start = System.currentTimeMillis();
+            List<File> files = new ArrayList<File>();
+            for (Future<File> f : e.getValue())
+               files.add(f.get());
+            concatenate(e.getKey().header, files, new File(this._out, e.getKey().file));
+            System.out.println(String.format("%-28s %12d rows (%d ms to finish)", e.getKey().file,
+                                             e.getKey().rows, System.currentTimeMillis() - start));
+         }//end for
+      }finally {
+         pool.shutdownNow();
+         parts.delete();
+      }//end try
+   }//end generate
+
+   private static void writeChunk(Table table, long from, long to, Random random, File part) throws IOException {
+      Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(part), "UTF-8"), 1 << 16);
+      try {
+         StringBuilder line = new StringBuilder(128);
+         for (long i = from; i < to; ++i) {
+            line.setLength(0);
+            table.row(i, random, line);
+            line.append('\n');
+            writer.append(line);
+         }//end for
+      }finally {
+         writer.close();
+      }//end try
+   }//end writeChunk
+
+   private static void concatenate(String header, List<File> parts, File target) throws IOException {
+      FileOutputStream out = new FileOutputStream(target);
+      try {
+         out.write((header + "\n").getBytes("UTF-8"));
+         FileChannel channel = out.getChannel();
+         for (File part : parts) {
+            FileInputStream in = new FileInputStream(part);
+            try {
+               FileChannel source = in.getChannel();
+               long size = source.size();
+               for (long done = 0; done < size; )
+                  done += source.transferTo(done, size - done, channel);
+            }finally {
+               in.close();
+            }//end try
+            part.delete();
+         }//end for
+      }finally {
+         out.close();
+      }//end try
+   }//end concatenate
+
+   // a point around a cluster centre, kept inside the decimal(8,6) range.
+   private static void location(StringBuilder line, double[] center, double spread, Random random) {
+      fixed(line, clamp(center[0] + random.nextGaussian() * spread));
+      line.append(',');
+      fixed(line, clamp(center[1] + random.nextGaussian() * spread));
+   }
+
+   private static double clamp(double v) {
+      return Math.max(0, Math.min(99.99999, v));
+   }
+
+   // v >= 0 with five decimals, like the source files.
+   private static void fixed(StringBuilder line, double v) {
+      long scaled = Math.round(v * 100000);
+      long fraction = scaled % 100000;
+      line.append(scaled / 100000).append('.');
+      for (long d = 10000; d > 1 && fraction < d; d /= 10)
+         line.append('0');
+      line.append(fraction);
+   }//end fixed
+
+   // the i-th of n rows spread over the time span, with a little jitter.
+   private void timestamp(StringBuilder line, long i, long n, Random random) {
+      long t = this._firstOrder + (long) ((double) i / n * this._span) + random.nextInt(60);
+      long[] date = civil(t / SECONDS_PER_DAY);
+      long s = t % SECONDS_PER_DAY;
+      line.append(date[0]).append('-');
+      two(line, date[1]).append('-');
+      two(line, date[2]).append(' ');
+      two(line, s / 3600).append(':');
+      two(line, s / 60 % 60).append(':');
+      two(line, s % 60);
+   }//end timestamp
+
+   private static StringBuilder two(StringBuilder line, long v) {
+      return (v < 10 ? line.append('0') : line).append(v);
+   }
+
+   /**
+    * @return {year, month, day} of a day counted from 1970-01-01, for
+    *         days after 0000-03-01
+    */
+   static long[] civil(long days) {
+      long z = days + 719468;
+      long era = z / 146097;
+      long doe = z - era * 146097;
+      long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+      long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+      long mp = (5 * doy + 2) / 153;
+      long month = mp < 10 ? mp + 3 : mp - 9;
+      return new long[] { yoe + era * 400 + (month <= 2 ? 1 : 0), month, doy - (153 * mp + 2) / 5 + 1 };
+   }//end civil
+
+   // seconds since 1970-01-01 of "YYYY-MM-DD hh:mm:ss"
+   private static long seconds(String timestamp) {
+      long y = Long.parseLong(timestamp.substring(0, 4));
+      long m = Long.parseLong(timestamp.substring(5, 7));
+      long d = Long.parseLong(timestamp.substring(8, 10));
+      y -= m <= 2 ? 1 : 0;
+      long era = y / 400;
+      long yoe = y - era * 400;
+      long doy = (153 * (m > 2 ? m - 3 : m + 9) + 2) / 5 + d - 1;
+      long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+      long days = era * 146097 + doe - 719468;
+      return days * SECONDS_PER_DAY + Long.parseLong(timestamp.substring(11, 13)) * 3600
+         + Long.parseLong(timestamp.substring(14, 16)) * 60 + Long.parseLong(timestamp.substring(17, 19));
+   }//end seconds
+
+   private static long between(int min, int max, Random random) {
+      return min + random.nextInt(max - min + 1);
+   }
+
+   // a multiplier that permutes 0 .. n-1, so popular ranks are spread out.
+   private static long coprime(long n) {
+      long a = Math.max(1, (long) (n * 0.6180339887));
+      while (gcd(a, n) != 1)
+         a++;
+      return a;
+   }
+
+   private static long gcd(long a, long b) {
+      return b == 0 ? a : gcd(b, a % b);
+   }
+
+   private static void join(StringBuilder line, String[] fields) {
+      for (int f = 0; f < fields.length; ++f)
+         line.append(f == 0 ? "" : ",").append(fields[f]);
+   }
+
+   // the rows of a source file without its header; the files have no quoted fields.
+   private static List<String[]> read(File file) throws IOException {
+      List<String[]> rows = new ArrayList<String[]>();
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+         String line = reader.readLine(); // header
+         while ((line = reader.readLine()) != null) {
+            if (line.trim().isEmpty())
+               continue;
+            String[] fields = line.split(",", -1);
+            for (int f = 0; f < fields.length; ++f)
+               fields[f] = fields[f].trim();
+            rows.add(fields);
+         }//end while
+      }finally {
+         reader.close();
+      }//end try
+      if (rows.isEmpty())
+         throw new IOException(file + " has no rows");
+      return rows;
+   }//end read
+
+   public static void main(String[] args) throws Exception {
+      if (args.length != 3) {
+         System.err.println("Usage: java [-classpath <classpath>] " + DataGenerator.class.getName()
+                            + " <sourceDir> <outDir> <scale>");
+         return;
+      }//end if
+      long scale = Long.parseLong(args[2]);
+      if (scale < 1) {
+         System.err.println("The scale must be at least 1");
+         return;
+      }//end if
+      File out = new File(args[1]);
+      if (!out.isDirectory() && !out.mkdirs()) {
+         System.err.println("Cannot create " + out);
+         return;
+      }//end if
+      int threads = Integer.getInteger("gen.threads", Runtime.getRuntime().availableProcessors()).intValue();
+      long start = System.currentTimeMillis();
+      new DataGenerator(new File(args[0]), out, scale).generate(threads);
+      System.out.println("Generated in " + (System.currentTimeMillis() - start) + " ms");
+   }//end main
+
+}//end DataGenerator
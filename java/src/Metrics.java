@@ -0,0 +1,306 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms and round-trip counts of the statements Retail sends
+ * and of the actions (menu choices, batch commands) that send them.
+ *
+ * Every statement is recorded under the Retail method that ran it and its
+ * SQL template.  While an action is in progress on a thread, the
+ * statements of that thread are also added to the action's round trips
+ * and database time.  Recording is lock-free: the histograms are arrays of
+ * atomic counters, so threads only contend on the same bucket.
+ *
+ * Recording is on unless the retail.metrics system property is false.
+ *
+ */
+public class Metrics {
+
+   /**
+    * A log-linear histogram of non-negative values.  Every power of two is
+    * split into SUB_BUCKETS linear buckets, so a reported percentile is
+    * within 1 / SUB_BUCKETS (about 6%) of the recorded value.
+    */
+   public static class Histogram {
+      private static final int SUB_BITS = 4;
+      private static final int SUB_BUCKETS = 1 << SUB_BITS;
+      private static final int BUCKETS = SUB_BUCKETS + (64 - SUB_BITS) * SUB_BUCKETS;
+
+      private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+      private final AtomicLong _count = new AtomicLong();
+      private final AtomicLong _sum = new AtomicLong();
+      private final AtomicLong _max = new AtomicLong();
+
+      public void record(long value) {
+         if (value < 0)
+            value = 0;
+         this._counts.incrementAndGet(index(value));
+         this._count.incrementAndGet();
+         this._sum.addAndGet(value);
+         long max = this._max.get();
+         while (value > max && !this._max.compareAndSet(max, value))
+            max = this._max.get();
+      }//end record
+
+      public long getCount() {
+         return this._count.get();
+      }
+
+      public long getSum() {
+         return this._sum.get();
+      }
+
+      public long getMax() {
+         return this._max.get();
+      }
+
+      public double getMean() {
+         long count = this._count.get();
+         return count == 0 ? 0 : (double) this._sum.get() / count;
+      }
+
+      /**
+       * @param p the quantile, e.g. 0.99
+       * @return the middle of the bucket holding the p-quantile, at most the maximum
+       */
+      public long getPercentile(double p) {
+         long count = 0;
+         for (int i = 0; i < BUCKETS; ++i)
+            count += this._counts.get(i);
+         if (count == 0)
+            return 0;
+         long rank = Math.max(1, (long) Math.ceil(p * count));
+         long seen = 0;
+         for (int i = 0; i < BUCKETS; ++i) {
+            seen += this._counts.get(i);
+            if (seen >= rank)
+               return Math.min(this._max.get(), middle(i));
+         }//end for
+         return this._max.get();
+      }//end getPercentile
+
+      static int index(long value) {
+         if (value < SUB_BUCKETS)
+            return (int) value;
+         int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+         return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+      }
+
+      static long middle(int index) {
+         if (index < SUB_BUCKETS)
+            return index;
+         int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+         long low = (long) (SUB_BUCKETS + (index - SUB_BUCKETS) % SUB_BUCKETS) << shift;
+         return low + ((1L << shift) >> 1);
+      }
+   }//end Histogram
+
+   /**
+    * Statements of one method and SQL template.
+    */
+   private static class StatementStats {
+      final String method;
+      final String sql;
+      final Histogram latency = new Histogram();
+      final AtomicLong roundTrips = new AtomicLong();
+
+      StatementStats(String method, String sql) {
+         this.method = method;
+         this.sql = sql;
+      }
+   }//end StatementStats
+
+   /**
+    * Calls of one action.
+    */
+   private static class ActionStats {
+      final String name;
+      final Histogram wall = new Histogram();
+      final Histogram database = new Histogram();
+      final Histogram roundTrips = new Histogram();
+
+      ActionStats(String name) {
+         this.name = name;
+      }
+   }//end ActionStats
+
+   /**
+    * An action in progress on the current thread; see begin() and end().
+    */
+   public static class Action {
+      private final String _name;
+      private final long _start;
+      private final Action _outer;
+      private long _roundTrips = 0;
+      private long _databaseNanos = 0;
+
+      private Action(String name, Action outer) {
+         this._name = name;
+         this._outer = outer;
+         this._start = System.nanoTime();
+      }
+   }//end Action
+
+   private final boolean _enabled;
+
+   // method -> SQL template -> statistics
+   private final ConcurrentMap<String, ConcurrentMap<String, StatementStats>> _statements =
+      new ConcurrentHashMap<String, ConcurrentMap<String, StatementStats>>();
+   private final ConcurrentMap<String, ActionStats> _actions = new ConcurrentHashMap<String, ActionStats>();
+   private final ThreadLocal<Action> _current = new ThreadLocal<Action>();
+
+   public Metrics(boolean enabled) {
+      this._enabled = enabled;
+   }
+
+   public boolean isEnabled() {
+      return this._enabled;
+   }
+
+   /**
+    * @return the start time to pass to statement(), or 0 when disabled
+    */
+   public long start() {
+      return this._enabled ? System.nanoTime() : 0;
+   }
+
+   /**
+    * Records a statement that took one round trip.
+    *
+    * @param method the Retail method that ran it
+    * @param sql its SQL template
+    * @param start the value returned by start() before it was sent
+    */
+   public void statement(String method, String sql, long start) {
+      statement(method, sql, start, 1);
+   }
+
+   /**
+    * Records a statement, e.g. a cursor read in several round trips.
+    */
+   public void statement(String method, String sql, long start, long roundTrips) {
+      if (!this._enabled)
+         return;
+      long nanos = System.nanoTime() - start;
+      ConcurrentMap<String, StatementStats> templates = this._statements.get(method);
+      if (templates == null) {
+         ConcurrentMap<String, StatementStats> created = new ConcurrentHashMap<String, StatementStats>();
+         templates = this._statements.putIfAbsent(method, created);
+         if (templates == null)
+            templates = created;
+      }//end if
+      StatementStats stats = templates.get(sql);
+      if (stats == null) {
+         StatementStats created = new StatementStats(method, sql);
+         stats = templates.putIfAbsent(sql, created);
+         if (stats == null)
+            stats = created;
+      }//end if
+      stats.latency.record(nanos);
+      stats.roundTrips.addAndGet(roundTrips);
+
+      Action action = this._current.get();
+      if (action != null) {
+         action._roundTrips += roundTrips;
+         action._databaseNanos += nanos;
+      }//end if
+   }//end statement
+
+   /**
+    * Starts an action on the current thread.  Actions nest; statements
+    * count towards the innermost one.
+    *
+    * @param name the action, e.g. a menu choice
+    * @return the action to pass to end(), or null when disabled
+    */
+   public Action begin(String name) {
+      if (!this._enabled || name == null)
+         return null;
+      Action action = new Action(name, this._current.get());
+      this._current.set(action);
+      return action;
+   }//end begin
+
+   /**
+    * Ends an action started by begin() and records its wall time,
+    * database time and round trips.
+    */
+   public void end(Action action) {
+      if (action == null)
+         return;
+      long wall = System.nanoTime() - action._start;
+      if (action._outer == null)
+         this._current.remove();
+      else
+         this._current.set(action._outer);
+      ActionStats stats = this._actions.get(action._name);
+      if (stats == null) {
+         ActionStats created = new ActionStats(action._name);
+         stats = this._actions.putIfAbsent(action._name, created);
+         if (stats == null)
+            stats = created;
+      }//end if
+      stats.wall.record(wall);
+      stats.database.record(action._databaseNanos);
+      stats.roundTrips.record(action._roundTrips);
+   }//end end
+
+   /**
+    * Prints the actions by total database time and the statements by total
+    * time, heaviest first.  Wall time of interactive actions includes the
+    * time spent at the prompts.
+    */
+   public void dump(PrintStream out) {
+      List<ActionStats> actions = new ArrayList<ActionStats>(this._actions.values());
+      Collections.sort(actions, new Comparator<ActionStats>() {
+         public int compare(ActionStats a, ActionStats b) {
+            return Long.compare(b.database.getSum(), a.database.getSum());
+         }
+      });
+      out.println(String.format("%-28s %8s %10s %7s %10s %10s %10s %10s %10s",
+                                "action", "calls", "trips/call", "trips99", "db ms", "db p50",
+                                "db p99", "db p99.9", "wall p99"));
+      for (ActionStats a : actions)
+         out.println(String.format("%-28s %8d %10.2f %7d %10.1f %10.3f %10.3f %10.3f %10.3f",
+                                   a.name, a.wall.getCount(), a.roundTrips.getMean(),
+                                   a.roundTrips.getPercentile(0.99), a.database.getSum() / 1e6,
+                                   ms(a.database, 0.50), ms(a.database, 0.99), ms(a.database, 0.999),
+                                   ms(a.wall, 0.99)));
+
+      List<StatementStats> statements = new ArrayList<StatementStats>();
+      for (Map<String, StatementStats> templates : this._statements.values())
+         statements.addAll(templates.values());
+      Collections.sort(statements, new Comparator<StatementStats>() {
+         public int compare(StatementStats a, StatementStats b) {
+            return Long.compare(b.latency.getSum(), a.latency.getSum());
+         }
+      });
+      out.println();
+      out.println(String.format("%-28s %8s %8s %10s %9s %9s %9s %9s  %s",
+                                "method", "calls", "trips", "total ms", "p50", "p99", "p99.9", "max", "sql"));
+      for (StatementStats s : statements)
+         out.println(String.format("%-28s %8d %8d %10.1f %9.3f %9.3f %9.3f %9.3f  %s",
+                                   s.method, s.latency.getCount(), s.roundTrips.get(),
+                                   s.latency.getSum() / 1e6, ms(s.latency, 0.50), ms(s.latency, 0.99),
+                                   ms(s.latency, 0.999), s.latency.getMax() / 1e6, abbreviate(s.sql)));
+   }//end dump
+
+   private static double ms(Histogram h, double p) {
+      return h.getPercentile(p) / 1e6;
+   }
+
+   // the template on one line, cut after 100 characters.
+   private static String abbreviate(String sql) {
+      String line = sql.replaceAll("\\s+", " ").trim();
+      return line.length() <= 100 ? line : line.substring(0, 97) + "...";
+   }
+
+}//end Metrics
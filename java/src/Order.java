@@ -0,0 +1,43 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * A row of the Orders table, together with the name of the store it was
+ * placed at.  Queries that map to this class must select COLUMNS, in that
+ * order, from Orders o joined with Store s.
+ *
+ */
+public class Order {
+
+   public static final String COLUMNS =
+      "o.orderNumber, o.customerID, o.storeID, s.name, o.productName, o.unitsOrdered, o.orderTime";
+
+   public static final Retail.RowMapper<Order> MAPPER = new Retail.RowMapper<Order>() {
+      public Order mapRow(ResultSet rs) throws SQLException {
+         return new Order(rs.getInt(1), rs.getInt(2), rs.getInt(3),
+                          Retail.rtrim(rs.getString(4)), Retail.rtrim(rs.getString(5)),
+                          rs.getInt(6), rs.getTimestamp(7));
+      }
+   };
+
+   public final int orderNumber;
+   public final int customerID;
+   public final int storeID;
+   public final String storeName;
+   public final String productName;
+   public final int unitsOrdered;
+   public final Timestamp orderTime;
+
+   public Order(int orderNumber, int customerID, int storeID, String storeName,
+                String productName, int unitsOrdered, Timestamp orderTime) {
+      this.orderNumber = orderNumber;
+      this.customerID = customerID;
+      this.storeID = storeID;
+      this.storeName = storeName;
+      this.productName = productName;
+      this.unitsOrdered = unitsOrdered;
+      this.orderTime = orderTime;
+   }
+
+}//end Order
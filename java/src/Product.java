@@ -0,0 +1,32 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A row of the Product table.  Queries that map to this class must select
+ * COLUMNS, in that order.
+ *
+ */
+public class Product {
+
+   public static final String COLUMNS = "storeID, productName, numberOfUnits, pricePerUnit";
+
+   public static final Retail.RowMapper<Product> MAPPER = new Retail.RowMapper<Product>() {
+      public Product mapRow(ResultSet rs) throws SQLException {
+         return new Product(rs.getInt(1), Retail.rtrim(rs.getString(2)),
+                            rs.getInt(3), rs.getDouble(4));
+      }
+   };
+
+   public final int storeID;
+   public final String productName;
+   public final int numberOfUnits;
+   public final double pricePerUnit;
+
+   public Product(int storeID, String productName, int numberOfUnits, double pricePerUnit) {
+      this.storeID = storeID;
+      this.productName = productName;
+      this.numberOfUnits = numberOfUnits;
+      this.pricePerUnit = pricePerUnit;
+   }
+
+}//end Product
@@ -0,0 +1,37 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A row of the ProductSales aggregate, together with the name of the store
+ * the product is sold at.  Queries that map to this class must select
+ * COLUMNS, in that order, from ProductSales ps joined with Store s.
+ *
+ */
+public class ProductSales {
+
+   public static final String COLUMNS =
+      "ps.storeID, s.name, ps.productName, ps.totalUnits, ps.orderCount";
+
+   public static final Retail.RowMapper<ProductSales> MAPPER = new Retail.RowMapper<ProductSales>() {
+      public ProductSales mapRow(ResultSet rs) throws SQLException {
+         return new ProductSales(rs.getInt(1), Retail.rtrim(rs.getString(2)),
+                                 Retail.rtrim(rs.getString(3)), rs.getLong(4), rs.getLong(5));
+      }
+   };
+
+   public final int storeID;
+   public final String storeName;
+   public final String productName;
+   public final long totalUnits;
+   public final long orderCount;
+
+   public ProductSales(int storeID, String storeName, String productName,
+                       long totalUnits, long orderCount) {
+      this.storeID = storeID;
+      this.storeName = storeName;
+      this.productName = productName;
+      this.totalUnits = totalUnits;
+      this.orderCount = orderCount;
+   }
+
+}//end ProductSales
@@ -0,0 +1,41 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * A row of the ProductUpdates table, together with the name of the store
+ * the product belongs to.  Queries that map to this class must select
+ * COLUMNS, in that order, from ProductUpdates pu joined with Store s.
+ *
+ */
+public class ProductUpdate {
+
+   public static final String COLUMNS =
+      "pu.updateNumber, pu.managerID, pu.storeID, s.name, pu.productName, pu.updatedOn";
+
+   public static final Retail.RowMapper<ProductUpdate> MAPPER = new Retail.RowMapper<ProductUpdate>() {
+      public ProductUpdate mapRow(ResultSet rs) throws SQLException {
+         return new ProductUpdate(rs.getInt(1), rs.getInt(2), rs.getInt(3),
+                                  Retail.rtrim(rs.getString(4)), Retail.rtrim(rs.getString(5)),
+                                  rs.getTimestamp(6));
+      }
+   };
+
+   public final int updateNumber;
+   public final int managerID;
+   public final int storeID;
+   public final String storeName;
+   public final String productName;
+   public final Timestamp updatedOn;
+
+   public ProductUpdate(int updateNumber, int managerID, int storeID, String storeName,
+                        String productName, Timestamp updatedOn) {
+      this.updateNumber = updateNumber;
+      this.managerID = managerID;
+      this.storeID = storeID;
+      this.storeName = storeName;
+      this.productName = productName;
+      this.updatedOn = updatedOn;
+   }
+
+}//end ProductUpdate
@@ -11,18 +11,28 @@
  */
 
 
-import java.sql.DriverManager;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.Statement;
+import java.sql.Types;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.io.FileReader;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.lang.Math;
 import java.sql.Timestamp;
 import java.util.Date;
@@ -33,8 +43,114 @@ import java.util.Date;
  */
 public class Retail {
 
-   // reference to physical database connection.
-   private Connection _connection = null;
+   // pool of physical database connections shared by every caller.
+   private ConnectionPool _pool = null;
+
+   // rows fetched per round trip by executeQueryAndStream.
+   static final int FETCH_SIZE = Integer.getInteger("retail.fetchSize", 500).intValue();
+
+   // numbers the cursors of executeQueryAndStream.
+   private static final AtomicInteger CURSORS = new AtomicInteger ();
+
+   // rows sent per round trip by batch writers.
+   static final int BATCH_SIZE = Integer.getInteger("retail.batchSize", 1000).intValue();
+
+   // inserts shared by the menu actions and the batch writers; the
+   // triggers in triggers.sql fill in the serial numbers and timestamps.
+   public static final String INSERT_ORDER =
+      "INSERT INTO Orders(customerID, storeID, productName, unitsOrdered) VALUES (?, ?, ?, ?)";
+   public static final String INSERT_PRODUCT_UPDATE =
+      "INSERT INTO ProductUpdates(managerID, storeID, productName) VALUES (?, ?, ?)";
+   public static final String INSERT_SUPPLY_REQUEST =
+      "INSERT INTO ProductSupplyRequests(managerID, warehouseID, storeID, productName, unitsRequested) VALUES (?, ?, ?, ?, ?)";
+
+   // most users returned by a name search.
+   static final int SEARCH_LIMIT = Integer.getInteger("retail.search.limit", 50).intValue();
+
+   // rows per page of the order and update histories.
+   static final int PAGE_SIZE = Integer.getInteger("retail.pageSize", 5).intValue();
+
+   // place_order() in triggers.sql checks and takes the stock and inserts
+   // the order in one call; negative results are the failure codes below.
+   public static final String PLACE_ORDER = "SELECT place_order(?, ?, ?, ?)";
+   public static final int ORDER_OUT_OF_STOCK = -1;
+   public static final int ORDER_NO_PRODUCT = -2;
+
+   // bumped whenever a Users row changes, so sessions know to reload it.
+   private final ConcurrentHashMap<Integer, Integer> _userVersions =
+      new ConcurrentHashMap<Integer, Integer>();
+
+   // radius of the "stores near you" listings.
+   public static final double STORE_RADIUS = 30.0;
+
+   // proximity queries are filtered by the database unless the
+   // retail.storeIndex system property asks for the in-memory index.
+   private static final boolean USE_STORE_INDEX = Boolean.getBoolean("retail.storeIndex");
+
+   // bounding box on the store_location index, then the exact distance.
+   // The bounds are cast to numeric so the comparison stays on the indexed
+   // decimal columns.
+   private static final String STORES_WITHIN =
+      "SELECT " + Store.COLUMNS + ", distance FROM ("
+      + "SELECT " + Store.COLUMNS + ", "
+      + "sqrt((latitude - CAST(? AS numeric)) ^ 2 + (longitude - CAST(? AS numeric)) ^ 2) AS distance "
+      + "FROM Store "
+      + "WHERE latitude BETWEEN CAST(? AS numeric) AND CAST(? AS numeric) "
+      + "AND longitude BETWEEN CAST(? AS numeric) AND CAST(? AS numeric)) AS near "
+      + "WHERE distance <= CAST(? AS numeric) ORDER BY distance, storeID";
+   private static final String STORES_ALL =
+      "SELECT " + Store.COLUMNS + ", "
+      + "sqrt((latitude - CAST(? AS numeric)) ^ 2 + (longitude - CAST(? AS numeric)) ^ 2) AS distance "
+      + "FROM Store ORDER BY distance, storeID";
+   private static final RowMapper<StoreIndex.Hit> STORE_HIT_MAPPER = new RowMapper<StoreIndex.Hit>() {
+      public StoreIndex.Hit mapRow(ResultSet rs) throws SQLException {
+         return new StoreIndex.Hit(Store.MAPPER.mapRow(rs), rs.getDouble(6));
+      }
+   };
+
+   // in-memory index over store coordinates, rebuilt after it expires or
+   // is invalidated; see getStoreIndex().
+   private volatile StoreIndex _storeIndex = null;
+   private volatile long _storeIndexLoadedAt = 0;
+   private static final long STORE_INDEX_TTL_MILLIS =
+      Long.getLong("retail.storeIndex.ttlMillis", 60000L).longValue();
+   private static final double STORE_INDEX_CELL_SIZE =
+      Double.parseDouble(System.getProperty("retail.storeIndex.cellSize", "5.0"));
+
+   // number of warehouses suggested for a supply request.
+   static final int WAREHOUSE_SUGGESTIONS = Integer.getInteger("retail.supply.suggestions", 10).intValue();
+
+   // store x warehouse distances, rebuilt when either table changes.
+   private volatile WarehouseRanking _warehouseRanking = null;
+   private long _warehouseRankingGeneration = 0;  // guarded by this
+
+   // catalog tables cached in memory, and the thread that invalidates them
+   // on NOTIFY events from other sessions.
+   private CatalogCache _catalog = null;
+   private CatalogListener _catalogListener = null;
+
+   // heaviest customers per store and overall, for viewPopularCustomers.
+   private CustomerRanking _customerRanking = null;
+
+   // folds the stock slots of hot products back into Product and the
+   // pending sales deltas into ProductSales; see triggers.sql.
+   private Timer _ledgerFolder = null;
+
+   // latency and round trips of every statement and action; set
+   // retail.metrics=false to turn recording off.
+   private final Metrics _metrics = new Metrics(!"false".equals(System.getProperty("retail.metrics")));
+
+   // statements slower than retail.slowQuery.thresholdMillis, optionally
+   // with their plans; null when the threshold is negative.
+   private SlowQueryLog _slowQueries = null;
+
+   // connection bound to the current thread by begin(), if any.
+   private final ThreadLocal<ConnectionPool.PooledConnection> _unitOfWork =
+      new ThreadLocal<ConnectionPool.PooledConnection>();
+
+   // in-memory updates of the current unit of work, run when it commits
+   // and dropped when it rolls back; see afterCommit().
+   private final ThreadLocal<List<Runnable>> _afterCommit = new ThreadLocal<List<Runnable>>();
 
    // handling the keyboard inputs through a BufferedReader
    // This variable can be global for convenience.
@@ -44,6 +160,14 @@ public class Retail {
    /**
     * Creates a new instance of Retail shop
     *
+    * The pool can be tuned with the system properties retail.pool.maxSize,
+    * retail.pool.maxWaitMillis, retail.pool.idleTimeoutMillis,
+    * retail.pool.maxLifetimeMillis and retail.pool.validationIntervalMillis.
+    * Statements slower than retail.slowQuery.thresholdMillis (default 500,
+    * negative turns it off) are logged to retail.slowQuery.file; with
+    * retail.slowQuery.explain=true the plans of slow reads are captured too.
+    * See SlowQueryLog for the other retail.slowQuery properties.
+    *
     * @param hostname the MySQL or PostgreSQL server hostname
     * @param database the name of the database
     * @param username the user name used to login to the database
@@ -58,8 +182,45 @@ public class Retail {
          String url = "jdbc:postgresql://localhost:" + dbport + "/" + dbname;
          System.out.println ("Connection URL: " + url + "\n");
 
-         // obtain a physical connection
-         this._connection = DriverManager.getConnection(url, user, passwd);
+         // creates the pool and checks that a physical connection can be made
+         this._pool = new ConnectionPool(url, user, passwd,
+               Integer.getInteger("retail.pool.maxSize", 8).intValue(),
+               Long.getLong("retail.pool.maxWaitMillis", 30000L).longValue(),
+               Long.getLong("retail.pool.idleTimeoutMillis", 600000L).longValue(),
+               Long.getLong("retail.pool.maxLifetimeMillis", 1800000L).longValue(),
+               Long.getLong("retail.pool.validationIntervalMillis", 5000L).longValue());
+         this._pool.release(this._pool.borrow());
+
+         long slowMillis = Long.getLong("retail.slowQuery.thresholdMillis", 500L).longValue();
+         if (slowMillis >= 0){
+            this._slowQueries = new SlowQueryLog(url, user, passwd, slowMillis,
+                  new File(System.getProperty("retail.slowQuery.file", "retail-slow.log")),
+                  Long.getLong("retail.slowQuery.maxBytes", 10L * 1024 * 1024).longValue(),
+                  Integer.getInteger("retail.slowQuery.keepFiles", 5).intValue(),
+                  Boolean.getBoolean("retail.slowQuery.explain"),
+                  Long.getLong("retail.slowQuery.explainIntervalMillis", 60000L).longValue(),
+                  Long.getLong("retail.slowQuery.explainTimeoutMillis", 30000L).longValue());
+            this._slowQueries.start();
+         }//end if
+
+         this._catalog = new CatalogCache(this, Integer.getInteger("retail.catalog.maxEntries", 1024).intValue());
+         if (!"false".equals(System.getProperty("retail.catalog.listen"))){
+            this._catalogListener = new CatalogListener(this, url, user, passwd,
+                  Long.getLong("retail.catalog.pollMillis", 50L).longValue());
+            this._catalogListener.start();
+         }//end if
+
+         this._customerRanking = seedCustomerRanking(Integer.getInteger("retail.topCustomers.capacity", 100).intValue());
+
+         long foldMillis = Long.getLong("retail.stock.foldMillis", 1000L).longValue();
+         if (foldMillis > 0){
+            this._ledgerFolder = new Timer("LedgerFolder", true);
+            this._ledgerFolder.schedule(new TimerTask() {
+               public void run() {
+                  foldLedgers();
+               }
+            }, foldMillis, foldMillis);
+         }//end if
          System.out.println("Done");
       }catch (Exception e){
          System.err.println("Error - Unable to Connect to Database: " + e.getMessage() );
@@ -76,20 +237,30 @@ public class Retail {
    }
    /**
     * Method to execute an update SQL statement.  Update SQL instructions
-    * includes CREATE, INSERT, UPDATE, DELETE, and DROP.
+    * includes CREATE, INSERT, UPDATE, DELETE, and DROP.  The statement is
+    * prepared once per connection and reused on later calls.
     *
-    * @param sql the input SQL string
+    * @param sql the input SQL template, with '?' for every parameter
+    * @param params the values bound to the parameters, in order
+    * @return the number of rows affected
     * @throws java.sql.SQLException when update failed
     */
-   public void executeUpdate (String sql) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
-
-      // issues the update instruction
-      stmt.executeUpdate (sql);
+   public int executeUpdate (String sql, Object... params) throws SQLException {
+      long start = startStatement ();
+      ConnectionPool.PooledConnection pc = acquire ();
+      try{
+         // fetches the cached statement and binds the parameters
+         PreparedStatement stmt = prepare (pc, sql, params);
 
-      // close the instruction
-      stmt.close ();
+         // issues the update instruction
+         return stmt.executeUpdate ();
+      }catch (SQLException e){
+         failed (pc, sql);
+         throw e;
+      }finally{
+         release (pc);
+         endStatement ("executeUpdate", sql, params, start, 1);
+      }//end try
    }//end executeUpdate
 
    /**
@@ -97,16 +268,20 @@ public class Retail {
     * method issues the query to the DBMS and outputs the results to
     * standard out.
     *
-    * @param query the input query string
+    * @param query the input query template, with '?' for every parameter
+    * @param params the values bound to the parameters, in order
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQueryAndPrintResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public int executeQueryAndPrintResult (String query, Object... params) throws SQLException {
+      long start = startStatement ();
+      ConnectionPool.PooledConnection pc = acquire ();
+      try{
+      // fetches the cached statement and binds the parameters
+      PreparedStatement stmt = prepare (pc, query, params);
 
       // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+      ResultSet rs = stmt.executeQuery ();
 
       /*
        ** obtains the metadata object for the returned result set.  The metadata
@@ -130,8 +305,15 @@ public class Retail {
             System.out.print (rs.getString (i) + "\t");
          ++rowCount;
       }//end while
-      stmt.close ();
+      rs.close ();
       return rowCount;
+      }catch (SQLException e){
+         failed (pc, query);
+         throw e;
+      }finally{
+         release (pc);
+         endStatement ("executeQueryAndPrintResult", query, params, start, 1);
+      }//end try
    }//end executeQuery
 
    /**
@@ -139,16 +321,20 @@ public class Retail {
     * method issues the query to the DBMS and returns the results as
    * a list of records. Each record in turn is a list of attribute values
     *
-    * @param query the input query string
+    * @param query the input query template, with '?' for every parameter
+    * @param params the values bound to the parameters, in order
     * @return the query result as a list of records
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public List<List<String>> executeQueryAndReturnResult (String query) throws SQLException {
-      // creates a statement object
-      Statement stmt = this._connection.createStatement ();
+   public List<List<String>> executeQueryAndReturnResult (String query, Object... params) throws SQLException {
+      long start = startStatement ();
+      ConnectionPool.PooledConnection pc = acquire ();
+      try{
+      // fetches the cached statement and binds the parameters
+      PreparedStatement stmt = prepare (pc, query, params);
 
       // issues the query instruction
-      ResultSet rs = stmt.executeQuery (query);
+      ResultSet rs = stmt.executeQuery ();
 
       /*
        ** obtains the metadata object for the returned result set.  The metadata
@@ -167,24 +353,35 @@ public class Retail {
                         record.add(rs.getString (i));
         result.add(record);
       }//end while
-      stmt.close ();
+      rs.close ();
       return result;
+      }catch (SQLException e){
+         failed (pc, query);
+         throw e;
+      }finally{
+         release (pc);
+         endStatement ("executeQueryAndReturnResult", query, params, start, 1);
+      }//end try
    }//end executeQueryAndReturnResult
 
    /**
     * Method to execute an input query SQL instruction (i.e. SELECT).  This
     * method issues the query to the DBMS and returns the number of results
     *
-    * @param query the input query string
+    * @param query the input query template, with '?' for every parameter
+    * @param params the values bound to the parameters, in order
     * @return the number of rows returned
     * @throws java.sql.SQLException when failed to execute the query
     */
-   public int executeQuery (String query) throws SQLException {
-       // creates a statement object
-       Statement stmt = this._connection.createStatement ();
+   public int executeQuery (String query, Object... params) throws SQLException {
+       long start = startStatement ();
+       ConnectionPool.PooledConnection pc = acquire ();
+       try{
+       // fetches the cached statement and binds the parameters
+       PreparedStatement stmt = prepare (pc, query, params);
 
        // issues the query instruction
-       ResultSet rs = stmt.executeQuery (query);
+       ResultSet rs = stmt.executeQuery ();
 
        int rowCount = 0;
 
@@ -192,39 +389,1144 @@ public class Retail {
        while (rs.next()){
           rowCount++;
        }//end while
-       stmt.close ();
+       rs.close ();
        return rowCount;
+       }catch (SQLException e){
+          failed (pc, query);
+          throw e;
+       }finally{
+          release (pc);
+          endStatement ("executeQuery", query, params, start, 1);
+       }//end try
+   }
+
+   /**
+    * Method to check whether a query returns at least one row.  The query
+    * is wrapped in SELECT EXISTS (...), so the server stops at the first
+    * match and only a single boolean is sent back.
+    *
+    * @param query the input query template, with '?' for every parameter
+    * @param params the values bound to the parameters, in order
+    * @return true if the query returns any row
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public boolean exists (String query, Object... params) throws SQLException {
+      return queryForLong ("SELECT EXISTS (" + query + ")", params) != 0;
+   }//end exists
+
+   /**
+    * Method to place an order in one round trip.  The server locks the
+    * product row, checks the stock, inserts the order (whose trigger takes
+    * the units out of stock) and returns the order number, so concurrent
+    * buyers cannot oversell a product.  Inside a unit of work the cached
+    * products and the customer ranking are only updated once it commits.
+    *
+    * @param customerID the user placing the order
+    * @param storeID the store the product is bought from
+    * @param productName the product bought
+    * @param units the number of units bought
+    * @return the new order number, ORDER_OUT_OF_STOCK or ORDER_NO_PRODUCT
+    * @throws java.sql.SQLException when the order could not be placed
+    */
+   public int submitOrder (final int customerID, final int storeID, String productName, final int units) throws SQLException {
+      final int orderNumber = (int) queryForLong (PLACE_ORDER, new Object[] {
+            Integer.valueOf (customerID), Integer.valueOf (storeID), productName, Integer.valueOf (units) });
+      if (orderNumber != ORDER_NO_PRODUCT){
+         afterCommit (new Runnable () {
+            public void run () {
+               invalidateProducts (storeID);
+               if (orderNumber > 0)
+                  _customerRanking.record (storeID, customerID, units);
+            }
+         });
+      }//end if
+      return orderNumber;
+   }//end submitOrder
+
+   // runs task now, or when the current unit of work commits.
+   private void afterCommit (Runnable task) {
+      List<Runnable> pending = this._afterCommit.get ();
+      if (pending == null)
+         task.run ();
+      else
+         pending.add (task);
+   }
+
+   // runs a query returning one number (or boolean) in its first column.
+   private long queryForLong (String query, Object[] params) throws SQLException {
+      long start = startStatement ();
+      ConnectionPool.PooledConnection pc = acquire ();
+      try{
+         PreparedStatement stmt = prepare (pc, query, params);
+         ResultSet rs = stmt.executeQuery ();
+         try{
+            if (!rs.next ())
+               return 0;
+            String value = rs.getString (1);
+            if ("t".equals (value) || "true".equals (value))
+               return 1;
+            if ("f".equals (value) || "false".equals (value))
+               return 0;
+            return Long.parseLong (value);
+         }finally{
+            rs.close ();
+         }//end try
+      }catch (SQLException e){
+         failed (pc, query);
+         throw e;
+      }finally{
+         release (pc);
+         endStatement ("queryForLong", query, params, start, 1);
+      }//end try
+   }//end queryForLong
+
+   /**
+    * Maps the current row of a result set to an object.  The record
+    * classes (Store, Product, Order, User, Warehouse) each provide one.
+    */
+   public interface RowMapper<T> {
+      T mapRow (ResultSet rs) throws SQLException;
+   }//end RowMapper
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and
+    * map every row to an object, reading columns with their native types.
+    *
+    * @param query the input query template, with '?' for every parameter
+    * @param mapper converts one row to an object
+    * @param params the values bound to the parameters, in order
+    * @return the mapped rows, in result order
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public <T> List<T> queryForList (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+      long start = startStatement ();
+      ConnectionPool.PooledConnection pc = acquire ();
+      try{
+         PreparedStatement stmt = prepare (pc, query, params);
+         ResultSet rs = stmt.executeQuery ();
+         List<T> result = new ArrayList<T>();
+         try{
+            while (rs.next ())
+               result.add (mapper.mapRow (rs));
+         }finally{
+            rs.close ();
+         }//end try
+         return result;
+      }catch (SQLException e){
+         failed (pc, query);
+         throw e;
+      }finally{
+         release (pc);
+         endStatement ("queryForList", query, params, start, 1);
+      }//end try
+   }//end queryForList
+
+   /**
+    * Same as queryForList, for queries that return at most one row.
+    *
+    * @return the mapped first row, or null when the query returns no row
+    */
+   public <T> T queryForObject (String query, RowMapper<T> mapper, Object... params) throws SQLException {
+      List<T> result = queryForList (query, mapper, params);
+      return result.isEmpty () ? null : result.get (0);
+   }//end queryForObject
+
+   /**
+    * Removes the blank padding Postgres adds to char(n) values.  Cheaper
+    * than replaceAll(" ", ""), which compiles a regex on every call.
+    *
+    * @param value a char(n) column value, may be null
+    * @return the value without trailing blanks
+    */
+   public static String rtrim (String value) {
+      if (value == null)
+         return null;
+      int end = value.length ();
+      while (end > 0 && value.charAt (end - 1) == ' ')
+         --end;
+      return end == value.length () ? value : value.substring (0, end);
+   }//end rtrim
+
+   /**
+    * Callback used by executeQueryAndStream to consume one row at a time.
+    * The result set is positioned on the current row; it must not be
+    * advanced or kept after the call returns.
+    */
+   public interface RowHandler {
+      void handleRow (ResultSet rs) throws SQLException;
+   }//end RowHandler
+
+   /**
+    * Method to execute an input query SQL instruction (i.e. SELECT) and
+    * hand each row to a callback as it arrives.  The query is declared as
+    * a server-side cursor and read with FETCH, fetchSize rows per round
+    * trip, so memory use does not grow with the size of the result.  The
+    * driver does not implement setFetchSize, hence the explicit cursor.
+    *
+    * @param query the input query template, with '?' for every parameter
+    * @param fetchSize the number of rows fetched per round trip
+    * @param handler the callback that consumes each row
+    * @param params the values bound to the parameters, in order
+    * @return the number of rows returned
+    * @throws java.sql.SQLException when failed to execute the query
+    */
+   public int executeQueryAndStream (String query, int fetchSize, RowHandler handler, Object... params) throws SQLException {
+      long start = startStatement ();
+      int rowCount = 0;
+      long roundTrips = 0;
+      int size = Math.max (1, fetchSize);
+      String cursor = "retail_stream_" + CURSORS.incrementAndGet ();
+      ConnectionPool.PooledConnection pc = acquire ();
+      // Postgres only keeps a cursor open inside a transaction.
+      boolean ownTransaction = pc != this._unitOfWork.get ();
+      try{
+         Connection connection = pc.getConnection ();
+         if (ownTransaction)
+            connection.setAutoCommit (false);
+
+         // the cursor name differs on every call, so it is not cached
+         PreparedStatement declare = connection.prepareStatement ("DECLARE " + cursor + " CURSOR FOR " + query);
+         try{
+            bind (declare, params);
+            declare.execute ();
+            ++roundTrips;
+         }finally{
+            declare.close ();
+         }//end try
+
+         Statement fetch = connection.createStatement ();
+         try{
+            int fetched;
+            do{
+               ResultSet rs = fetch.executeQuery ("FETCH FORWARD " + size + " FROM " + cursor);
+               ++roundTrips;
+               fetched = 0;
+               try{
+                  while (rs.next ()){
+                     handler.handleRow (rs);
+                     ++fetched;
+                  }//end while
+               }finally{
+                  rs.close ();
+               }//end try
+               rowCount += fetched;
+            }while (fetched == size);
+
+            // a unit of work goes on after the cursor is read
+            if (!ownTransaction){
+               fetch.execute ("CLOSE " + cursor);
+               ++roundTrips;
+            }//end if
+         }finally{
+            fetch.close ();
+         }//end try
+
+         if (ownTransaction){
+            connection.commit ();
+            ++roundTrips;
+         }//end if
+         return rowCount;
+      }finally{
+         if (ownTransaction){
+            try{
+               pc.getConnection ().rollback ();
+               pc.getConnection ().setAutoCommit (true);
+            }catch (SQLException e){
+               // the pool discards connections left outside autocommit.
+            }//end try
+         }//end if
+         release (pc);
+         endStatement ("executeQueryAndStream", query, params, start, roundTrips);
+      }//end try
+   }//end executeQueryAndStream
+
+   /**
+    * Same as executeQueryAndStream with the default fetch size, set by the
+    * retail.fetchSize system property.
+    */
+   public int executeQueryAndStream (String query, RowHandler handler, Object... params) throws SQLException {
+      return executeQueryAndStream (query, FETCH_SIZE, handler, params);
+   }
+
+   /**
+    * Method to start a unit of work.  Until commit() or rollback() is
+    * called, every query issued by the current thread runs on the same
+    * connection inside one transaction.
+    *
+    * @throws java.sql.SQLException when no connection could be borrowed
+    */
+   public void begin () throws SQLException {
+      if (this._unitOfWork.get () != null)
+         throw new SQLException ("A unit of work is already in progress");
+      ConnectionPool.PooledConnection pc = this._pool.borrow ();
+      try{
+         pc.getConnection ().setAutoCommit (false);
+      }catch (SQLException e){
+         this._pool.invalidate (pc);
+         throw e;
+      }//end try
+      this._unitOfWork.set (pc);
+      this._afterCommit.set (new ArrayList<Runnable>());
+   }//end begin
+
+   /**
+    * Method to commit the current unit of work and give its connection
+    * back to the pool.
+    *
+    * @throws java.sql.SQLException when the commit failed
+    */
+   public void commit () throws SQLException {
+      endUnitOfWork (true);
+   }
+
+   /**
+    * Method to roll back the current unit of work, if any, and give its
+    * connection back to the pool.  The in-memory updates it deferred are
+    * dropped.
+    */
+   public void rollback () {
+      try{
+         endUnitOfWork (false);
+      }catch (SQLException e){
+         // ignored, the connection has been discarded.
+      }//end try
+   }
+
+   private void endUnitOfWork (boolean commit) throws SQLException {
+      ConnectionPool.PooledConnection pc = this._unitOfWork.get ();
+      if (pc == null)
+         return;
+      this._unitOfWork.remove ();
+      List<Runnable> pending = this._afterCommit.get ();
+      this._afterCommit.remove ();
+      long start = startStatement ();
+      try{
+         if (commit)
+            pc.getConnection ().commit ();
+         else
+            pc.getConnection ().rollback ();
+         pc.getConnection ().setAutoCommit (true);
+         this._pool.release (pc);
+      }catch (SQLException e){
+         this._pool.invalidate (pc);
+         throw e;
+      }finally{
+         endStatement ("endUnitOfWork", commit ? "COMMIT" : "ROLLBACK", null, start, 1);
+      }//end try
+      if (commit && pending != null){
+         for (Runnable task : pending)
+            task.run ();
+      }//end if
+   }//end endUnitOfWork
+
+   /**
+    * A batch writer inserts the rows of one INSERT ... VALUES (?, ...)
+    * template batchSize rows per round trip: every chunk is sent as one
+    * INSERT with a VALUES list of all its rows.  The driver's own
+    * executeBatch would send one statement per row.  Row-level triggers
+    * still fire for every row.  Outside a unit of work every chunk is
+    * committed on its own; inside one, nothing is committed until
+    * commit() is called.  Always close() the writer to send the last
+    * partial chunk and give the connection back.
+    */
+   public class BatchWriter {
+      private final String _sql;
+      private final String _insert;
+      private final String _values;
+      private final int _columns;
+      private final int _batchSize;
+      private final boolean _ownTransaction;
+      private ConnectionPool.PooledConnection _pc;
+      private final List<Object> _pending = new ArrayList<Object> ();
+      private int _pendingRows = 0;
+      private long _rowCount = 0;
+
+      private BatchWriter (String sql, int batchSize) throws SQLException {
+         this._sql = sql;
+         String text = sql.trim ();
+         int values = text.toUpperCase ().lastIndexOf ("VALUES");
+         if (!text.toUpperCase ().startsWith ("INSERT") || values < 0 || !text.endsWith (")"))
+            throw new SQLException ("Batch writes need an INSERT ... VALUES (...) template: " + sql);
+         this._insert = text.substring (0, values + "VALUES".length ()) + " ";
+         this._values = text.substring (values + "VALUES".length ()).trim ();
+         int columns = 0;
+         for (int i = 0; i < this._values.length (); ++i)
+            if (this._values.charAt (i) == '?')
+               ++columns;
+         this._columns = columns;
+         // the server counts the parameters of a statement in 16 bits
+         this._batchSize = Math.max (1, Math.min (batchSize, 32767 / Math.max (1, columns)));
+         this._pc = acquire ();
+         this._ownTransaction = this._pc != _unitOfWork.get ();
+         try{
+            if (this._ownTransaction)
+               this._pc.getConnection ().setAutoCommit (false);
+         }catch (SQLException e){
+            abort ();
+            throw e;
+         }//end try
+      }
+
+      /**
+       * Queues one row, sending the chunk when it is full.
+       *
+       * @param params the values bound to the parameters, in order
+       * @throws java.sql.SQLException when a full chunk failed
+       */
+      public void add (Object... params) throws SQLException {
+         if (this._pc == null)
+            throw new SQLException ("Batch writer is closed");
+         if (params.length != this._columns){
+            abort ();
+            throw new SQLException ("Expected " + this._columns + " values per row, got " + params.length);
+         }//end if
+         for (Object param : params)
+            this._pending.add (param);
+         if (++this._pendingRows >= this._batchSize)
+            flush ();
+      }//end add
+
+      /**
+       * Sends the queued rows now, in one statement.
+       *
+       * @return the number of rows written so far
+       * @throws java.sql.SQLException when the chunk failed; the writer is
+       *         closed and, outside a unit of work, the chunk rolled back
+       */
+      public long flush () throws SQLException {
+         if (this._pendingRows == 0 || this._pc == null)
+            return this._rowCount;
+         StringBuilder chunk = new StringBuilder (this._insert);
+         for (int i = 0; i < this._pendingRows; ++i)
+            chunk.append (i == 0 ? "" : ", ").append (this._values);
+         String sql = chunk.toString ();
+         long start = startStatement ();
+         long roundTrips = 1;
+         try{
+            // full chunks share one cached statement
+            prepare (this._pc, sql, this._pending.toArray ()).executeUpdate ();
+            if (this._ownTransaction){
+               this._pc.getConnection ().commit ();
+               ++roundTrips;
+            }//end if
+         }catch (SQLException e){
+            failed (this._pc, sql);
+            abort ();
+            throw e;
+         }finally{
+            endStatement ("BatchWriter.flush", this._sql, null, start, roundTrips);
+         }//end try
+         this._rowCount += this._pendingRows;
+         this._pending.clear ();
+         this._pendingRows = 0;
+         return this._rowCount;
+      }//end flush
+
+      /**
+       * Sends the last chunk and gives the connection back.
+       *
+       * @return the number of rows written
+       * @throws java.sql.SQLException when the last chunk failed
+       */
+      public long close () throws SQLException {
+         flush ();
+         if (this._pc != null){
+            if (this._ownTransaction)
+               this._pc.getConnection ().setAutoCommit (true);
+            release (this._pc);
+            this._pc = null;
+         }//end if
+         return this._rowCount;
+      }//end close
+
+      /**
+       * @return the number of rows written by completed chunks
+       */
+      public long getRowCount () {
+         return this._rowCount;
+      }
+
+      // drops the queued rows and gives the connection back.
+      private void abort () {
+         this._pending.clear ();
+         this._pendingRows = 0;
+         if (this._pc == null)
+            return;
+         try{
+            if (this._ownTransaction){
+               this._pc.getConnection ().rollback ();
+               this._pc.getConnection ().setAutoCommit (true);
+            }//end if
+         }catch (SQLException e){
+            // the pool discards connections left outside autocommit.
+         }//end try
+         release (this._pc);
+         this._pc = null;
+      }//end abort
+   }//end BatchWriter
+
+   /**
+    * Method to open a batch writer for an INSERT ... VALUES template.
+    *
+    * @param sql the SQL template, with '?' for every parameter
+    * @param batchSize the number of rows sent per round trip
+    * @return a writer; close it when done
+    * @throws java.sql.SQLException when no connection could be borrowed
+    *         or the template is not an INSERT ... VALUES (...)
+    */
+   public BatchWriter openBatch (String sql, int batchSize) throws SQLException {
+      if (batchSize < 1)
+         throw new SQLException ("Batch size must be positive: " + batchSize);
+      return new BatchWriter (sql, batchSize);
+   }
+
+   /**
+    * Same as openBatch with the default batch size, set by the
+    * retail.batchSize system property.
+    */
+   public BatchWriter openBatch (String sql) throws SQLException {
+      return openBatch (sql, BATCH_SIZE);
+   }
+
+   /**
+    * Method to write many rows of one INSERT template in chunks of
+    * batchSize rows, e.g. INSERT_ORDER rows imported from another system.
+    *
+    * @param sql the SQL template, with '?' for every parameter
+    * @param batchSize the number of rows sent per round trip
+    * @param rows the parameter values of every row
+    * @return the number of rows written
+    * @throws java.sql.SQLException when a chunk failed
+    */
+   public long executeBatch (String sql, int batchSize, List<Object[]> rows) throws SQLException {
+      BatchWriter writer = openBatch (sql, batchSize);
+      for (Object[] row : rows)
+         writer.add (row);
+      return writer.close ();
+   }//end executeBatch
+
+   /**
+    * Method to import orders placed in another system.  Every row is
+    * customerID, storeID, productName and units; the rows are inserted
+    * BATCH_SIZE per round trip in one unit of work, so either all of them
+    * are imported or none.  The order trigger takes the units out of
+    * stock and fails the import when a product runs out.
+    *
+    * @return the number of orders imported
+    * @throws IllegalArgumentException when the user is not an admin
+    * @throws java.sql.SQLException when the orders could not be inserted
+    */
+   public long importOrders (Session session, final List<Object[]> rows) throws SQLException {
+      if (!session.isAdmin ())
+         throw new IllegalArgumentException ("Only an admin can import orders.");
+      begin ();
+      try{
+         long imported = executeBatch (INSERT_ORDER, BATCH_SIZE, rows);
+         afterCommit (new Runnable () {
+            public void run () {
+               invalidateProducts ();
+               for (Object[] row : rows)
+                  _customerRanking.record (((Integer) row[1]).intValue (), ((Integer) row[0]).intValue (),
+                                           ((Integer) row[3]).intValue ());
+            }
+         });
+         commit ();
+         return imported;
+      }finally{
+         rollback ();
+      }//end try
+   }//end importOrders
+
+   /**
+    * Method to get the spatial index over the Store table.  The index is
+    * loaded on first use and rebuilt once it is older than the
+    * retail.storeIndex.ttlMillis system property or was invalidated.
+    *
+    * @return the current store index
+    * @throws java.sql.SQLException when the stores could not be loaded
+    */
+   public StoreIndex getStoreIndex () throws SQLException {
+      StoreIndex index = this._storeIndex;
+      if (index != null && System.currentTimeMillis () - this._storeIndexLoadedAt < STORE_INDEX_TTL_MILLIS)
+         return index;
+      synchronized (this) {
+         if (this._storeIndex == index || this._storeIndex == null){
+            long loadedAt = System.currentTimeMillis ();
+            List<Store> stores = queryForList ("SELECT " + Store.COLUMNS + " FROM Store", Store.MAPPER);
+            this._storeIndex = new StoreIndex (stores, STORE_INDEX_CELL_SIZE);
+            this._storeIndexLoadedAt = loadedAt;
+         }//end if
+         return this._storeIndex;
+      }//end synchronized
+   }//end getStoreIndex
+
+   /**
+    * @return the read-through cache of stores, products and warehouses
+    */
+   public CatalogCache getCatalog () {
+      return this._catalog;
+   }
+
+   /**
+    * Method to drop the cached stores and the store index after the Store
+    * table changed; the next read reloads them.
+    */
+   public void invalidateStores () {
+      synchronized (this) {
+         this._storeIndex = null;
+         this._warehouseRankingGeneration++;
+         this._warehouseRanking = null;
+      }//end synchronized
+      this._catalog.invalidateStores ();
+   }
+
+   /**
+    * Method to drop every cached product list after the Product table
+    * changed.
+    */
+   public void invalidateProducts () {
+      this._catalog.invalidateProducts ();
+   }
+
+   /**
+    * Method to drop the cached product list of one store after this process
+    * changed its products.
+    */
+   public void invalidateProducts (int storeID) {
+      this._catalog.invalidateProducts (storeID);
+   }
+
+   /**
+    * Method to drop the cached warehouses after the Warehouse table changed.
+    */
+   public void invalidateWarehouses () {
+      synchronized (this) {
+         this._warehouseRankingGeneration++;
+         this._warehouseRanking = null;
+      }//end synchronized
+      this._catalog.invalidateWarehouses ();
+   }
+
+   /**
+    * Method to find the warehouses nearest to a store from the store x
+    * warehouse distance matrix.  The matrix is rebuilt from the cached
+    * warehouses after either table changed.
+    *
+    * @param store the store supplies are sent to
+    * @param k the number of warehouses wanted
+    * @return at most k warehouses, nearest first
+    * @throws java.sql.SQLException when the warehouses could not be loaded
+    */
+   public List<WarehouseRanking.Hit> nearestWarehouses (Store store, int k) throws SQLException {
+      WarehouseRanking ranking = this._warehouseRanking;
+      if (ranking == null){
+         // a ranking built while the tables changed is used once, not kept
+         long generation;
+         synchronized (this) {
+            generation = this._warehouseRankingGeneration;
+         }//end synchronized
+         ranking = new WarehouseRanking (this._catalog.getWarehouses ());
+         synchronized (this) {
+            if (generation == this._warehouseRankingGeneration)
+               this._warehouseRanking = ranking;
+         }//end synchronized
+      }//end if
+      return ranking.nearest (store, k);
+   }//end nearestWarehouses
+
+   /**
+    * Method to drop every cached catalog entry, e.g. when change events may
+    * have been missed.
+    */
+   public void invalidateCatalog () {
+      invalidateStores ();
+      invalidateProducts ();
+      invalidateWarehouses ();
+   }
+
+   /**
+    * Method to find the stores within radius of a point.  The database
+    * filters the rows, so only the stores in range are transferred; with
+    * -Dretail.storeIndex=true the in-memory index answers instead.
+    *
+    * @return the stores within radius of a point, nearest first
+    * @throws java.sql.SQLException when the stores could not be queried
+    */
+   public List<StoreIndex.Hit> storesWithin (double lat, double lon, double radius) throws SQLException {
+      if (USE_STORE_INDEX)
+         return getStoreIndex ().within (lat, lon, radius);
+      return queryForList (STORES_WITHIN, STORE_HIT_MAPPER, lat, lon,
+                           lat - radius, lat + radius, lon - radius, lon + radius, radius);
+   }//end storesWithin
+
+   /**
+    * @return the k stores nearest to a point, nearest first
+    * @throws java.sql.SQLException when the store index could not be loaded
+    */
+   public List<StoreIndex.Hit> nearestStores (double lat, double lon, int k) throws SQLException {
+      return getStoreIndex ().nearest (lat, lon, k);
+   }
+
+   /**
+    * @return every store with its distance from a point, nearest first
+    * @throws java.sql.SQLException when the stores could not be queried
+    */
+   public List<StoreIndex.Hit> allStores (double lat, double lon) throws SQLException {
+      if (USE_STORE_INDEX)
+         return getStoreIndex ().all (lat, lon);
+      return queryForList (STORES_ALL, STORE_HIT_MAPPER, lat, lon);
+   }//end allStores
+
+   /**
+    * Method to read one page of a customer's orders, newest first.  Pages
+    * are addressed by the last order number seen rather than an offset, so
+    * every page is a bounded range scan of the order_customer_number index.
+    *
+    * @param customerID the customer whose orders are listed
+    * @param beforeOrderNumber only orders numbered below this are returned;
+    *        Integer.MAX_VALUE for the first page
+    * @param pageSize the maximum number of orders returned
+    * @return the orders, newest first
+    * @throws java.sql.SQLException when the orders could not be queried
+    */
+   public List<Order> orderHistory (int customerID, int beforeOrderNumber, int pageSize) throws SQLException {
+      return queryForList ("SELECT " + Order.COLUMNS + " FROM Orders o, Store s "
+                           + "WHERE s.storeID = o.storeID AND o.customerID = ? AND o.orderNumber < ? "
+                           + "ORDER BY o.orderNumber DESC LIMIT ?",
+                           Order.MAPPER, Integer.valueOf (customerID), Integer.valueOf (beforeOrderNumber),
+                           Integer.valueOf (pageSize));
+   }//end orderHistory
+
+   /**
+    * Method to read one page of the product update history, newest first,
+    * narrowed by any combination of filters.  Pages are addressed by the
+    * last update seen, so with the update_manager, update_store and
+    * update_time indexes every page is a bounded index range scan.
+    *
+    * @param managerID only updates by this manager, or null
+    * @param storeID only updates of this store, or null
+    * @param productName only updates of this product, or null
+    * @param from only updates made at or after this time, or null
+    * @param to only updates made before this time, or null
+    * @param after the last update of the previous page, or null for the
+    *        first page
+    * @param pageSize the maximum number of updates returned
+    * @return the updates, newest first
+    * @throws java.sql.SQLException when the updates could not be queried
+    */
+   public List<ProductUpdate> updateHistory (Integer managerID, Integer storeID, String productName,
+                                             Timestamp from, Timestamp to, ProductUpdate after,
+                                             int pageSize) throws SQLException {
+      StringBuilder query = new StringBuilder ("SELECT " + ProductUpdate.COLUMNS
+                                               + " FROM ProductUpdates pu, Store s WHERE s.storeID = pu.storeID");
+      List<Object> params = new ArrayList<Object> ();
+      if (managerID != null){
+         query.append (" AND pu.managerID = ?");
+         params.add (managerID);
+      }//end if
+      if (storeID != null){
+         query.append (" AND pu.storeID = ?");
+         params.add (storeID);
+      }//end if
+      if (productName != null){
+         query.append (" AND pu.productName = CAST(? AS bpchar)");
+         params.add (productName);
+      }//end if
+      if (from != null){
+         query.append (" AND pu.updatedOn >= ?");
+         params.add (from);
+      }//end if
+      if (to != null){
+         query.append (" AND pu.updatedOn < ?");
+         params.add (to);
+      }//end if
+      if (after != null){
+         query.append (" AND (pu.updatedOn, pu.updateNumber) < (?, ?)");
+         params.add (after.updatedOn);
+         params.add (Integer.valueOf (after.updateNumber));
+      }//end if
+      query.append (" ORDER BY pu.updatedOn DESC, pu.updateNumber DESC LIMIT ?");
+      params.add (Integer.valueOf (pageSize));
+      return queryForList (query.toString (), ProductUpdate.MAPPER, params.toArray ());
+   }//end updateHistory
+
+   /**
+    * Method to find users whose name contains a string.  Searches of three
+    * or more characters use the user_name_trgm trigram index and are ranked
+    * by similarity to the search string; shorter ones cannot use trigrams
+    * and walk the primary key instead, stopping after limit matches.
+    *
+    * @param part the string to look for; '%' and '_' match themselves
+    * @param limit the maximum number of users returned
+    * @return the matching users, best match first
+    * @throws java.sql.SQLException when the users could not be queried
+    */
+   public List<User> searchUsers (String part, int limit) throws SQLException {
+      String pattern = "%" + part.replace ("!", "!!").replace ("%", "!%").replace ("_", "!_") + "%";
+      if (part.length () < 3)
+         return queryForList ("SELECT " + User.COLUMNS + " FROM Users WHERE name::text LIKE ? ESCAPE '!' "
+                              + "ORDER BY userID LIMIT ?",
+                              User.MAPPER, pattern, Integer.valueOf (limit));
+      return queryForList ("SELECT " + User.COLUMNS + " FROM Users WHERE name::text LIKE ? ESCAPE '!' "
+                           + "ORDER BY similarity(name::text, ?) DESC, userID LIMIT ?",
+                           User.MAPPER, pattern, part, Integer.valueOf (limit));
+   }//end searchUsers
+
+   /**
+    * Method to list the stores a user may order from: every store for an
+    * admin, the stores within STORE_RADIUS for everybody else.
+    *
+    * @return the stores, nearest first
+    * @throws java.sql.SQLException when the stores could not be queried
+    */
+   public List<StoreIndex.Hit> storesFor (Session session) throws SQLException {
+      if (session.isAdmin ())
+         return allStores (session.getLatitude (), session.getLongitude ());
+      return storesWithin (session.getLatitude (), session.getLongitude (), STORE_RADIUS);
+   }//end storesFor
+
+   /**
+    * Method to place an order on behalf of a user.  This is the write path
+    * of the placeOrder menu action and of the batch "order" command.
+    *
+    * @return the new order number
+    * @throws IllegalArgumentException when the store is out of reach, the
+    *         product is not sold there or the units are out of range
+    * @throws IllegalStateException when the store has too little stock
+    * @throws java.sql.SQLException when the order could not be placed
+    */
+   public int orderFor (Session session, int storeID, String productName, int units) throws SQLException {
+      if (units <= 0 || units > 1000)
+         throw new IllegalArgumentException ("Invalid Value...");
+      Store store = this._catalog.getStore (storeID);
+      if (store == null || (!session.isAdmin ()
+            && calculateDistance (session.getLatitude (), session.getLongitude (), store.latitude, store.longitude) > STORE_RADIUS))
+         throw new IllegalArgumentException ("Invalid Store...");
+      int orderNumber = submitOrder (session.getUserID (), storeID, productName, units);
+      if (orderNumber == ORDER_NO_PRODUCT)
+         throw new IllegalArgumentException ("This store does not hold the product: " + productName);
+      if (orderNumber == ORDER_OUT_OF_STOCK)
+         throw new IllegalStateException ("Not enough stock at store to process order....");
+      return orderNumber;
+   }//end orderFor
+
+   /**
+    * Method to change the stock and/or price of a product and log the
+    * change in ProductUpdates, in one transaction.  This is the write path
+    * of the updateProduct menu action and of the batch "update-units" and
+    * "update-price" commands.
+    *
+    * @param units the new stock, or null to keep it
+    * @param price the new price per unit, or null to keep it
+    * @throws IllegalArgumentException when the user does not manage the
+    *         store or the store does not sell the product
+    * @throws java.sql.SQLException when the product could not be updated
+    */
+   public void updateProductFor (Session session, int storeID, String productName,
+                                 Integer units, Double price) throws SQLException {
+      managedStore (session, storeID);
+      if (this._catalog.getProduct (storeID, productName) == null)
+         throw new IllegalArgumentException ("This store does not hold the product: " + productName);
+      begin ();
+      try{
+         //  the trigger fills in updateNumber and updatedOn
+         executeUpdate (INSERT_PRODUCT_UPDATE, Integer.valueOf (session.getUserID ()), Integer.valueOf (storeID), productName);
+         // also resets the stock slots of hot products
+         if (units != null)
+            executeQuery ("SELECT set_product_units(?, ?, ?)", Integer.valueOf (storeID), productName, units);
+         if (price != null)
+            executeUpdate ("UPDATE Product SET pricePerUnit = ? WHERE storeID = ? AND productName = CAST(? AS bpchar)", price, Integer.valueOf (storeID), productName);
+         commit ();
+      }finally{
+         rollback ();
+         invalidateProducts (storeID);
+      }//end try
+   }//end updateProductFor
+
+   /**
+    * Method to request units of a product from a warehouse.  This is the
+    * write path of the placeProductSupplyRequests menu action and of the
+    * batch "supply" command.
+    *
+    * @throws IllegalArgumentException when the user does not manage the
+    *         store, the product or warehouse does not exist or the units
+    *         are out of range
+    * @throws java.sql.SQLException when the request could not be placed
+    */
+   public void supplyRequestFor (Session session, int storeID, String productName,
+                                 int warehouseID, int units) throws SQLException {
+      managedStore (session, storeID);
+      if (this._catalog.getProduct (storeID, productName) == null)
+         throw new IllegalArgumentException ("This store does not hold the product: " + productName);
+      if (this._catalog.getWarehouse (warehouseID) == null)
+         throw new IllegalArgumentException ("The warehouse with the specified ID does not exist");
+      if (units <= 0)
+         throw new IllegalArgumentException ("You must order more than 0 units");
+      if (units >= 101)
+         throw new IllegalArgumentException ("An Admin must authorize orders of more than 100 units.");
+      executeUpdate (INSERT_SUPPLY_REQUEST, Integer.valueOf (session.getUserID ()), Integer.valueOf (warehouseID),
+                     Integer.valueOf (storeID), productName, Integer.valueOf (units));
+      invalidateProducts (storeID);
+   }//end supplyRequestFor
+
+   /**
+    * @return the best selling products of the user's stores, or of every
+    *         store for an admin, best first
+    * @throws java.sql.SQLException when the aggregate could not be queried
+    */
+   public List<ProductSales> popularProducts (Session session, int n) throws SQLException {
+      if (session.isAdmin ())
+         return queryForList ("SELECT " + ProductSales.COLUMNS + " FROM ProductSales ps, Store s WHERE s.storeID = ps.storeID ORDER BY ps.totalUnits DESC LIMIT ?",
+                              ProductSales.MAPPER, Integer.valueOf (n));
+      return queryForList ("SELECT " + ProductSales.COLUMNS + " FROM ProductSales ps, Store s WHERE s.storeID = ps.storeID AND s.managerID = ? ORDER BY ps.totalUnits DESC LIMIT ?",
+                           ProductSales.MAPPER, Integer.valueOf (session.getUserID ()), Integer.valueOf (n));
+   }//end popularProducts
+
+   /**
+    * @return the heaviest customers of the user's stores, or of every
+    *         store for an admin, heaviest first
+    * @throws java.sql.SQLException when the managed stores could not be
+    *         queried
+    */
+   public List<CustomerRanking.Hit> popularCustomers (Session session, int n) throws SQLException {
+      if (session.isAdmin ())
+         return this._customerRanking.top (n);
+      List<Integer> managed = new ArrayList<Integer> ();
+      for (Store s : queryForList ("SELECT " + Store.COLUMNS + " FROM Store WHERE managerID = ?", Store.MAPPER, Integer.valueOf (session.getUserID ())))
+         managed.add (Integer.valueOf (s.storeID));
+      return this._customerRanking.top (managed, n);
+   }//end popularCustomers
+
+   // checks that the user is the store's manager or an admin.
+   private Store managedStore (Session session, int storeID) throws SQLException {
+      if (!session.isManager () && !session.isAdmin ())
+         throw new IllegalArgumentException ("You are not authorized to do such action...");
+      Store store = this._catalog.getStore (storeID);
+      if (store == null || (!session.isAdmin () && store.managerID != session.getUserID ()))
+         throw new IllegalArgumentException ("This store does not exist or is not managed by you.");
+      return store;
+   }//end managedStore
+
+   // feeds the units of every customer at every store to a new ranking,
+   // aggregated by the database and streamed in one pass.  A failed seed
+   // is reported and leaves the ranking empty; new orders still fill it.
+   private CustomerRanking seedCustomerRanking (int capacity) {
+      final CustomerRanking ranking = new CustomerRanking (capacity);
+      try{
+         executeQueryAndStream ("SELECT storeID, customerID, SUM(unitsOrdered) FROM Orders GROUP BY storeID, customerID",
+                                new RowHandler () {
+            public void handleRow (ResultSet rs) throws SQLException {
+               ranking.record (rs.getInt (1), rs.getInt (2), rs.getLong (3));
+            }
+         });
+         return ranking;
+      }catch (SQLException e){
+         System.err.println ("Popular customers start empty: " + e.getMessage ());
+         return new CustomerRanking (capacity);
+      }//end try
+   }//end seedCustomerRanking
+
+   /**
+    * @return the in-memory ranking of the heaviest customers
+    */
+   public CustomerRanking getCustomerRanking () {
+      return this._customerRanking;
+   }
+
+   // runs the folds; stops for good if triggers.sql is not loaded.  Each
+   // dirty product is folded in its own statement, so its slots are only
+   // locked while that product is folded.
+   private void foldLedgers () {
+      try{
+         List<Object[]> dirty = queryForList (
+            "SELECT DISTINCT storeID, productName FROM ProductStockSlots WHERE dirty ORDER BY storeID, productName",
+            new RowMapper<Object[]>() {
+               public Object[] mapRow (ResultSet rs) throws SQLException {
+                  return new Object[] { Integer.valueOf (rs.getInt (1)), rs.getString (2) };
+               }
+            });
+         for (Object[] product : dirty)
+            executeQuery ("SELECT try_fold_product_slots(?, ?)", product);
+         executeQuery ("SELECT fold_product_sales()");
+      }catch (SQLException e){
+         System.err.println ("Stock slots and sales are not folded: " + e.getMessage ());
+         String message = String.valueOf (e.getMessage ());
+         if (message.indexOf ("does not exist") >= 0)
+            this._ledgerFolder.cancel ();
+      }//end try
+   }//end foldLedgers
+
+   /**
+    * Method to mark a Users row as changed.  Every Session of that user
+    * reloads the row the next time it is validated.
+    *
+    * @param userID the id of the changed user
+    */
+   public void invalidateUser (int userID) {
+      Integer key = Integer.valueOf (userID);
+      while (true) {
+         Integer old = this._userVersions.putIfAbsent (key, Integer.valueOf (1));
+         if (old == null || this._userVersions.replace (key, old, Integer.valueOf (old.intValue () + 1)))
+            return;
+      }//end while
+   }//end invalidateUser
+
+   /**
+    * @param userID the id of a user
+    * @return the change counter of the user's row
+    */
+   public int getUserVersion (int userID) {
+      Integer version = this._userVersions.get (Integer.valueOf (userID));
+      return version == null ? 0 : version.intValue ();
+   }
+
+   /**
+    * @return usage and wait-time statistics of the connection pool
+    */
+   public String getPoolStats () {
+      return this._pool.getStats ();
+   }
+
+   /**
+    * @return the statement and action statistics of this client
+    */
+   public Metrics getMetrics () {
+      return this._metrics;
+   }
+
+   /**
+    * Method to print the statement and action statistics followed by the
+    * pool and catalog cache statistics.
+    */
+   public void dumpMetrics (PrintStream out) {
+      this._metrics.dump (out);
+      out.println ();
+      out.println ("pool: " + getPoolStats ());
+      out.println ("catalog: " + this._catalog.getStats ());
+   }//end dumpMetrics
+
+   // returns the connection of the current unit of work, or borrows one.
+   private ConnectionPool.PooledConnection acquire () throws SQLException {
+      ConnectionPool.PooledConnection pc = this._unitOfWork.get ();
+      return pc != null ? pc : this._pool.borrow ();
+   }
+
+   // gives a connection back unless it belongs to the current unit of work.
+   private void release (ConnectionPool.PooledConnection pc) {
+      if (pc != this._unitOfWork.get ())
+         this._pool.release (pc);
+   }
+
+   // the start time of a statement, if the metrics or the slow query log need it.
+   private long startStatement () {
+      return this._metrics.isEnabled () || this._slowQueries != null ? System.nanoTime () : 0;
+   }
+
+   // records a finished statement in the metrics and, if slow, in the slow query log.
+   private void endStatement (String method, String sql, Object[] params, long start, long roundTrips) {
+      this._metrics.statement (method, sql, start, roundTrips);
+      if (this._slowQueries != null)
+         this._slowQueries.check (sql, params, System.nanoTime () - start);
    }
 
+   /**
+    * Method to look up the prepared statement of an SQL template in the
+    * per-connection cache and bind the given parameters to it.
+    *
+    * @param pc the connection the statement is run on
+    * @param sql the SQL template, with '?' for every parameter
+    * @param params the values bound to the parameters, in order
+    * @return the prepared statement, ready to execute
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   private PreparedStatement prepare (ConnectionPool.PooledConnection pc, String sql, Object[] params) throws SQLException {
+      StatementCache statements = pc.getStatements ();
+      PreparedStatement stmt = statements.prepare (sql, serverTyped (params));
+      try{
+         stmt.clearParameters ();
+         bind (stmt, params);
+      }catch (SQLException e){
+         statements.evict (sql);
+         throw e;
+      }//end try
+      return stmt;
+   }//end prepare
+
+   // whether the server may type the parameters from their Java values.
+   // The driver binds a Timestamp as timestamptz, which would shift it by
+   // the time zone; in the SQL text it stays a plain timestamp.  Strings
+   // bind as text, so the SQL casts them to bpchar where an index on a
+   // char(n) column should be used.
+   private static boolean serverTyped (Object[] params) {
+      for (Object param : params)
+         if (param instanceof Date)
+            return false;
+      return true;
+   }
+
+   // drops a failed statement, whose PREPARE may not have run.
+   private static void failed (ConnectionPool.PooledConnection pc, String sql) {
+      pc.getStatements ().evict (sql);
+   }
+
+   // binds the parameters of a statement, nulls as VARCHAR.
+   private static void bind (PreparedStatement stmt, Object[] params) throws SQLException {
+      for (int i = 0; i < params.length; ++i) {
+         if (params[i] == null)
+            stmt.setNull (i + 1, Types.VARCHAR);
+         else
+            stmt.setObject (i + 1, params[i]);
+      }//end for
+   }//end bind
+
    /**
     * Method to fetch the last value from sequence. This
     * method issues the query to the DBMS and returns the current
-    * value of sequence used for autogenerated keys
+    * value of sequence used for autogenerated keys.  currval() is per
+    * session, so call it inside the same unit of work as the insert.
     *
     * @param sequence name of the DB sequence
     * @return current value of a sequence
     * @throws java.sql.SQLException when failed to execute the query
     */
    public int getCurrSeqVal(String sequence) throws SQLException {
-        Statement stmt = this._connection.createStatement ();
-
-        ResultSet rs = stmt.executeQuery (String.format("Select currval('%s')", sequence));
-        if (rs.next())
-                return rs.getInt(1);
+        List<List<String>> result = executeQueryAndReturnResult ("Select currval(?)", sequence);
+        if (!result.isEmpty())
+                return Integer.parseInt(result.get(0).get(0));
         return -1;
    }
 
    /**
-    * Method to close the physical connection if it is open.
+    * Method to close the pooled connections, after writing the statistics
+    * when the retail.metrics.out system property is set.
     */
    public void cleanup(){
-      try{
-         if (this._connection != null){
-            this._connection.close ();
-         }//end if
-      }catch (SQLException e){
-         // ignored.
-      }//end try
+      rollback ();
+      // retail.metrics.out names a file (or - for standard error) that
+      // gets the statistics on exit
+      String metricsOut = System.getProperty ("retail.metrics.out");
+      if (metricsOut != null && this._pool != null){
+         try{
+            PrintStream out = metricsOut.equals ("-") ? System.err : new PrintStream (new FileOutputStream (metricsOut));
+            dumpMetrics (out);
+            if (out != System.err)
+               out.close ();
+         }catch (IOException e){
+            System.err.println ("Cannot write metrics: " + e.getMessage ());
+         }//end try
+      }//end if
+      if (this._catalogListener != null){
+         this._catalogListener.shutdown ();
+      }//end if
+      if (this._ledgerFolder != null){
+         this._ledgerFolder.cancel ();
+      }//end if
+      if (this._slowQueries != null){
+         this._slowQueries.shutdown ();
+      }//end if
+      if (this._pool != null){
+         this._pool.close ();
+      }//end if
    }//end cleanup
 
    /**
@@ -233,16 +1535,21 @@ public class Retail {
     * @param args the command line arguments this inclues the <mysql|pgsql> <login file>
     */
    public static void main (String[] args) {
-      if (args.length != 3) {
+      boolean batch = args.length == 5 && args[3].equals ("--batch");
+      boolean serve = args.length == 5 && args[3].equals ("--serve");
+      if (args.length != 3 && !batch && !serve) {
          System.err.println (
             "Usage: " +
             "java [-classpath <classpath>] " +
             Retail.class.getName () +
-            " <dbname> <port> <user>");
+            " <dbname> <port> <user> [--batch <script>|- | --serve <listenPort>]");
          return;
       }//end if
-      Greeting();
+      if (!batch && !serve)
+         Greeting();
       Retail esql = null;
+      // non-zero when a batch script failed, for nightly jobs
+      int exitCode = 0;
       try{
          // use postgres JDBC driver.
          Class.forName ("org.postgresql.Driver").newInstance ();
@@ -253,6 +1560,38 @@ public class Retail {
          String user = args[2];
          esql = new Retail (dbname, dbport, user, "");
 
+         // runs a command script without prompts; see BatchRunner
+         if (batch) {
+            BufferedReader script = args[4].equals ("-") ? in : new BufferedReader (new FileReader (args[4]));
+            BatchRunner runner = new BatchRunner (esql);
+            int failed = runner.run (script, System.out);
+            runner.printSummary (System.out);
+            if (failed > 0){
+               System.err.println (failed + " command(s) failed");
+               exitCode = 1;
+            }//end if
+            return;
+         }//end if
+
+         // serves many clients over TCP until the JVM is stopped; see RetailServer
+         if (serve) {
+            final RetailServer server = new RetailServer (esql, Integer.parseInt (args[4]));
+            final Thread mainThread = Thread.currentThread ();
+            Runtime.getRuntime ().addShutdownHook (new Thread () {
+               public void run () {
+                  server.shutdown ();
+                  try{
+                     // lets main close the pool and write the metrics
+                     mainThread.join (10000);
+                  }catch (InterruptedException e){
+                     // exit anyway.
+                  }//end try
+               }
+            });
+            server.serve ();
+            return;
+         }//end if
+
          boolean keepon = true;
          while(keepon) {
             // These are sample SQL statements
@@ -261,21 +1600,30 @@ public class Retail {
             System.out.println("1. Create user");
             System.out.println("2. Log in");
             System.out.println("9. < EXIT");
-            String authorisedUser = null;
-            switch (readChoice()){
+            Session session = null;
+            int choice = readChoice();
+            Metrics.Action action = esql.getMetrics().begin(choice == 1 ? "CreateUser" : choice == 2 ? "LogIn" : null);
+            try {
+            switch (choice){
                case 1: CreateUser(esql); break;
-               case 2: authorisedUser = LogIn(esql); break;
+               case 2: session = LogIn(esql); break;
                case 9: keepon = false; break;
                default :
                   System.out.print("\033[H\033[2J");
                   System.out.flush();
                   System.out.println("Unrecognized choice!"); break;
             }//end switch
-            if (authorisedUser != null) {
+            }finally {
+               esql.getMetrics().end(action);
+            }//end try
+            if (session != null) {
               System.out.print("\033[H\033[2J");
               System.out.flush();
               boolean usermenu = true;
               while(usermenu) {
+                // reloads the user row only if it was changed
+                if(!session.validate(esql))
+                   break;
                 System.out.println("MAIN MENU");
                 System.out.println("---------");
                 System.out.println("1. View Stores within 30 miles");
@@ -283,7 +1631,7 @@ public class Retail {
                 System.out.println("3. Place a Order");
                 System.out.println("4. View 5 recent orders");
 
-                if(checkIfManager(esql, authorisedUser) || checkIfAdmin(esql, authorisedUser))
+                if(session.isManager() || session.isAdmin())
                 {
                     //the following functionalities basically used by managers
                     System.out.println("5. [M] Update Product");
@@ -291,28 +1639,34 @@ public class Retail {
                     System.out.println("7. [M] View 5 Popular Items");
                     System.out.println("8. [M] View 5 Popular Customers");
                     System.out.println("9. [M] Place Product Supply Request to Warehouse");
-		    if(checkIfAdmin(esql, authorisedUser))
+		    if(session.isAdmin())
 		    {
 			System.out.println("10. [A] View Users");
 			System.out.println("11. [A] View Managers");
 		        System.out.println("12. [A] Update User Information");
+		        System.out.println("13. [A] View Statistics");
                     }
 		}
                 System.out.println(".........................");
                 System.out.println("20. Log out");
-                switch (readChoice()){
-                   case 1: viewStores(esql, authorisedUser); break;
-                   case 2: viewProducts(esql, authorisedUser); break;
-                   case 3: placeOrder(esql, authorisedUser); break;
-                   case 4: viewRecentOrders(esql, authorisedUser); break;
-                   case 5: updateProduct(esql, authorisedUser); break;
-                   case 6: viewRecentUpdates(esql, authorisedUser); break;
-                   case 7: viewPopularProducts(esql, authorisedUser); break;
-                   case 8: viewPopularCustomers(esql, authorisedUser); break;
-                   case 9: placeProductSupplyRequests(esql, authorisedUser); break;
-                   case 12: updateUserInfo(esql, authorisedUser); break;
-		   case 10: viewUsers(esql, authorisedUser); break;
-		   case 11: peekManagerData(esql, authorisedUser); break;
+                int menuChoice = readChoice();
+                // times the database work of every menu action
+                Metrics.Action timed = esql.getMetrics().begin(menuAction(menuChoice));
+                try {
+                switch (menuChoice){
+                   case 1: viewStores(esql, session); break;
+                   case 2: viewProducts(esql, session); break;
+                   case 3: placeOrder(esql, session); break;
+                   case 4: viewRecentOrders(esql, session); break;
+                   case 5: updateProduct(esql, session); break;
+                   case 6: viewRecentUpdates(esql, session); break;
+                   case 7: viewPopularProducts(esql, session); break;
+                   case 8: viewPopularCustomers(esql, session); break;
+                   case 9: placeProductSupplyRequests(esql, session); break;
+                   case 12: updateUserInfo(esql, session); break;
+		   case 10: viewUsers(esql, session); break;
+		   case 11: peekManagerData(esql, session); break;
+		   case 13: viewStatistics(esql, session); break;
                    case 20:
 			System.out.print("\033[H\033[2J");
                         System.out.flush(); 
@@ -324,11 +1678,16 @@ public class Retail {
 			System.out.println("Unrecognized choice!"); 
 			break;
                 }
+                }finally {
+                   esql.getMetrics().end(timed);
+                }//end try
               }
             }
          }//end while
       }catch(Exception e) {
          System.err.println (e.getMessage ());
+         if (batch)
+            exitCode = 1;
       }finally{
          // make sure to cleanup the created table and close the connection.
          try{
@@ -340,9 +1699,32 @@ public class Retail {
          }catch (Exception e) {
             // ignored.
          }//end try
+         // after cleanup; the batch branch returns from inside the try
+         if (exitCode != 0)
+            System.exit (exitCode);
       }//end try
    }//end main
 
+   // the name the metrics record a user menu choice under, or null.
+   private static String menuAction(int choice) {
+      switch (choice) {
+         case 1: return "viewStores";
+         case 2: return "viewProducts";
+         case 3: return "placeOrder";
+         case 4: return "viewRecentOrders";
+         case 5: return "updateProduct";
+         case 6: return "viewRecentUpdates";
+         case 7: return "viewPopularProducts";
+         case 8: return "viewPopularCustomers";
+         case 9: return "placeProductSupplyRequests";
+         case 10: return "viewUsers";
+         case 11: return "peekManagerData";
+         case 12: return "updateUserInfo";
+         case 13: return "viewStatistics";
+         default: return null;
+      }//end switch
+   }//end menuAction
+
    public static void Greeting(){
         System.out.print("\033[H\033[2J");
        System.out.flush();
@@ -379,7 +1761,7 @@ public class Retail {
       try{
          System.out.print("\tEnter name: ");
          String name = in.readLine();
-         if(esql.executeQuery(String.format("SELECT userID FROM Users WHERE name = '%s';", name)) != 0)
+         if(esql.exists("SELECT 1 FROM Users WHERE name = CAST(? AS bpchar)", name))
          {
             System.out.println(String.format("The user '%s' already exists within the database.", name));
             return;
@@ -408,9 +1790,9 @@ public class Retail {
 
          String type="Customer";
 
-                        String query = String.format("INSERT INTO USERS (name, password, latitude, longitude, type) VALUES ('%s','%s', %s, %s,'%s')", name, password, latitude, longitude, type);
+                        String query = "INSERT INTO USERS (name, password, latitude, longitude, type) VALUES (?, ?, ?, ?, ?)";
 
-         esql.executeUpdate(query);
+         esql.executeUpdate(query, name, password, Double.valueOf(latitude), Double.valueOf(longitude), type);
          System.out.println ("User successfully created!");
       }catch(Exception e){
          System.err.println (e.getMessage ());
@@ -420,19 +1802,18 @@ public class Retail {
 
    /*
     * Check log in credentials for an existing user
-    * @return User login or null is the user does not exist
+    * @return the user's session or null is the user does not exist
     **/
-   public static String LogIn(Retail esql){
+   public static Session LogIn(Retail esql){
       try{
          System.out.print("\tEnter name: ");
          String name = in.readLine();
          System.out.print("\tEnter password: ");
          String password = in.readLine();
 
-         String query = String.format("SELECT * FROM USERS WHERE name = '%s' AND password = '%s'", name, password);
-         int userNum = esql.executeQuery(query);
-         if (userNum > 0)
-                return name;
+         Session session = Session.login(esql, name, password);
+         if (session != null)
+                return session;
 	 System.out.print("\033[H\033[2J");
          System.out.flush();
          System.out.println("Sorry, we couldn't find this username/password combination....");
@@ -445,39 +1826,22 @@ public class Retail {
 
 // Rest of the functions definition go in here
 
-   public static void viewStores(Retail esql, String user) {
+   public static void viewStores(Retail esql, Session session) {
    	      try{	
 		  
 		    System.out.print("\033[H\033[2J");
                     System.out.flush();
 		  
-		    List<List<String>> userLocation = esql.executeQueryAndReturnResult(String.format("SELECT latitude, longitude FROM Users WHERE name = '%s';", user));
-		    
-		    double uLat = Double.parseDouble(userLocation.get(0).get(0));
-		    double uLong = Double.parseDouble(userLocation.get(0).get(1));
-
-		    List<List<String>> stores = esql.executeQueryAndReturnResult("SELECT storeID, name, latitude, longitude FROM Store;");
-		    
-		    String sID;
-		    String sname;
-		    double sLat;
-		    double sLong;
+		    double uLat = session.getLatitude();
+		    double uLong = session.getLongitude();
 
 		    System.out.println(String.format("\nStores within 30 km of (%.2f, %.2f): ", uLat, uLong));
 	 	    System.out.println(" _____________________________________");
 	            System.out.println("| ID# | Name  | Lat   | Long  | Dist  |");
 		    System.out.println("|=====+=======+=======+=======+=======|");
-		    for(List<String> location : stores){
-			
-			sID = location.get(0);
-			sname = location.get(1).replaceAll(" ", "");
-			sLat = Double.parseDouble(location.get(2));
-			sLong = Double.parseDouble(location.get(3));
-
-			double dist = esql.calculateDistance(uLat, uLong, sLat, sLong);
-			
-			if(dist <= 30.0)
-				System.out.println(String.format("| %-3s | %-5s | %-5.2f | %-5.2f | %-5.2f |", sID, sname, sLat, sLong, dist));
+		    for(StoreIndex.Hit hit : esql.storesWithin(uLat, uLong, STORE_RADIUS)){
+			Store location = hit.store;
+			System.out.println(String.format("| %-3d | %-5s | %-5.2f | %-5.2f | %-5.2f |", location.storeID, location.name, location.latitude, location.longitude, hit.distance));
 		     }
 		     System.out.println(" ===================================== \n");
 	 	   
@@ -487,18 +1851,14 @@ public class Retail {
      		 }
 
     }
-    public static void viewProducts(Retail esql, String user) {
+    public static void viewProducts(Retail esql, Session session) {
             try
 	    {
 	       System.out.print("\033[H\033[2J");
                     System.out.flush();
 
-                    List<List<String>> userLocation = esql.executeQueryAndReturnResult(String.format("SELECT latitude, longitude FROM Users WHERE name = '%s';", user));
-
-                    double uLat = Double.parseDouble(userLocation.get(0).get(0));
-                    double uLong = Double.parseDouble(userLocation.get(0).get(1));
-
-                    List<List<String>> stores = esql.executeQueryAndReturnResult("SELECT storeID, name, latitude, longitude FROM Store;");
+                    // admins may pick any store
+                    List<StoreIndex.Hit> stores = esql.storesFor(session);
 
                     String sID;
                     String sname;
@@ -512,20 +1872,15 @@ public class Retail {
                     System.out.println(" _____________________________________");
                     System.out.println("| ID# | Name  | Lat   | Long  | Dist  |");
                     System.out.println("|=====+=======+=======+=======+=======|");
-                    for(List<String> location : stores){
-
-                        sID = location.get(0);
-                        sname = location.get(1).replaceAll(" ", "");
-                        sLat = Double.parseDouble(location.get(2));
-                        sLong = Double.parseDouble(location.get(3));
+                    for(StoreIndex.Hit hit : stores){
 
-                        double dist = esql.calculateDistance(uLat, uLong, sLat, sLong);
+                        sID = String.valueOf(hit.store.storeID);
+                        sname = hit.store.name;
+                        sLat = hit.store.latitude;
+                        sLong = hit.store.longitude;
 
-                        if(dist <= 30.0 || user.equals("Admin"))
-                        {
-                                System.out.println(String.format("| %-3s | %-5s | %-5.2f | %-5.2f | %-5.2f |", sID, sname, sLat, sLong, dist));
-                                valid_stores.add(sID);  //      Add store to list of valid stores
-                        }
+                        System.out.println(String.format("| %-3s | %-5s | %-5.2f | %-5.2f | %-5.2f |", sID, sname, sLat, sLong, hit.distance));
+                        valid_stores.add(sID);  //      Add store to list of valid stores
                      }
                      System.out.println(" ===================================== \n");
 		
@@ -540,26 +1895,21 @@ public class Retail {
              		return;
          	     }
 		     
-		     List<List<String>> output = esql.executeQueryAndReturnResult(String.format("SELECT name FROM Store WHERE storeID = %s", store));
-         	     String storeName = output.get(0).get(0);
+		     String storeName = esql.getCatalog().getStore(Integer.parseInt(store)).name;
 
          	     System.out.print("\033[H\033[2J");
          	     System.out.flush();
 
-		     List<List<String>> productData = esql.executeQueryAndReturnResult(String.format("SELECT DISTINCT p.productName, p.pricePerUnit, p.numberOfUnits FROM Product p, Store s, Users u WHERE s.storeID = %s AND s.storeID = p.storeID;", store));
+		     List<Product> productData = esql.getCatalog().getProducts(Integer.parseInt(store));
          	     System.out.print("Products sold at store ");
          	     System.out.println(storeName + ": ");
          	     
 		     System.out.println(" ___________________________________");
 		     System.out.println("| Product         | Price   | Units |");
 		     System.out.println("|=================+=========+=======|");
-		     String pname, price, punits;
-		     for(List<String> row : productData)
-		     { 
-			pname = row.get(0).replaceAll(" ", "");
-			price = row.get(1).replaceAll(" ", "");
-	 		punits = row.get(2).replaceAll(" ", "");
-			System.out.println(String.format("| %-15s | %-7s | %-5s |", pname, price, punits));	
+		     for(Product row : productData)
+		     {
+			System.out.println(String.format("| %-15s | %-7.2f | %-5d |", row.productName, row.pricePerUnit, row.numberOfUnits));
 		     }
          	     System.out.println(" ===================================\n");
 
@@ -567,17 +1917,13 @@ public class Retail {
         	 System.err.println(e.getMessage());
      	      }
       }
-   public static void placeOrder(Retail esql, String user) {
+   public static void placeOrder(Retail esql, Session session) {
      try{
         System.out.print("\033[H\033[2J");
         System.out.flush();
 
-        List<List<String>> userLocation = esql.executeQueryAndReturnResult(String.format("SELECT latitude, longitude FROM Users WHERE name = '%s';", user));
-
-        double uLat = Double.parseDouble(userLocation.get(0).get(0));
-        double uLong = Double.parseDouble(userLocation.get(0).get(1));
-        
-        List<List<String>> stores = esql.executeQueryAndReturnResult("SELECT storeID, name, latitude, longitude FROM Store;");
+        // admins may pick any store
+        List<StoreIndex.Hit> stores = esql.storesFor(session);
                     String sID;
                     String sname;
                     double sLat;
@@ -589,21 +1935,15 @@ public class Retail {
                     System.out.println(" _____________________________________");
 		    System.out.println("| ID# | Name  | Lat   | Long  | Dist  |");
 		    System.out.println("|=====+=======+=======+=======+=======|");
-                    for(List<String> location : stores){
-
-                        sID = location.get(0);
-                        sname = location.get(1).replaceAll(" ", "");
-                        sLat = Double.parseDouble(location.get(2));
-                        sLong = Double.parseDouble(location.get(3));
-			
+                    for(StoreIndex.Hit hit : stores){
 
-                        double dist = esql.calculateDistance(uLat, uLong, sLat, sLong);
+                        sID = String.valueOf(hit.store.storeID);
+                        sname = hit.store.name;
+                        sLat = hit.store.latitude;
+                        sLong = hit.store.longitude;
 
-                        if(dist <= 30.0 || user.equals("Admin"))
-			{
-                                System.out.println(String.format("| %-3s | %-5s | %-5.2f | %-5.2f | %-5.2f |", sID, sname, sLat, sLong, dist));
-                     		valid_stores.add(sID);	//	Add store to list of valid stores
-			}
+                        System.out.println(String.format("| %-3s | %-5s | %-5.2f | %-5.2f | %-5.2f |", sID, sname, sLat, sLong, hit.distance));
+                        valid_stores.add(sID);	//	Add store to list of valid stores
 		     }
                      System.out.println(" ===================================== \n");
 
@@ -618,33 +1958,28 @@ public class Retail {
 	     return;
 	 }
         
-	 List<List<String>> output = esql.executeQueryAndReturnResult(String.format("SELECT name FROM Store WHERE storeID = %s", store));
-         String storeName = output.get(0).get(0);
+	 String storeName = esql.getCatalog().getStore(Integer.parseInt(store)).name;
 
          System.out.print("\033[H\033[2J");
          System.out.flush();
          
-	  List<List<String>> productData = esql.executeQueryAndReturnResult(String.format("SELECT DISTINCT p.productName, p.pricePerUnit, p.numberOfUnits FROM Product p, Store s, Users u WHERE s.storeID = %s AND s.storeID = p.storeID;", store));
+	  List<Product> productData = esql.getCatalog().getProducts(Integer.parseInt(store));
 	 System.out.print("Products sold at store ");
          System.out.println(storeName);
          
 	 System.out.println(" ___________________________________");
          System.out.println("| Product         | Price   | Units |");
          System.out.println("|=================+=========+=======|");
-         String pname, price, punits;
-         for(List<String> row : productData)
+         for(Product row : productData)
          {
-             pname = row.get(0).replaceAll(" ", "");
-             price = row.get(1).replaceAll(" ", "");
-             punits = row.get(2).replaceAll(" ", "");
-             System.out.println(String.format("| %-15s | %-7s | %-5s |", pname, price, punits));
+             System.out.println(String.format("| %-15s | %-7.2f | %-5d |", row.productName, row.pricePerUnit, row.numberOfUnits));
          }
          System.out.println(" ===================================\n");
 
 
          System.out.print("Insert Product: ");
          String product = in.readLine();
-         if(esql.executeQuery(String.format("SELECT DISTINCT p.productName, s.name FROM Product p, Store s, Users u WHERE s.storeID = p.storeID AND s.storeID = %s AND p.productName = '%s'", store, product)) == 0){
+         if(esql.getCatalog().getProduct(Integer.parseInt(store), product) == null){
             System.out.print("\033[H\033[2J");
             System.out.flush();
             System.out.print("This store does not hold the product: ");
@@ -652,40 +1987,17 @@ public class Retail {
             return;
          }
 
-	 //  Make sure there is enough product
-	 List<List<String>> choice = esql.executeQueryAndReturnResult(String.format("SELECT DISTINCT p.numberOfUnits FROM Product p, Store s WHERE s.storeID = p.storeID AND s.storeID = %s AND p.productName = '%s';", store, product));
-	 int product_left = Integer.parseInt(choice.get(0).get(0));
-
          System.out.print("Enter Number of units: ");
          String unitNumbers = in.readLine();
          int units = Integer.parseInt(unitNumbers);
-         if(units <= 0 || units > 1000)
-	 {
-	    System.out.print("\033[H\033[2J");
-            System.out.flush();
-            System.out.println("Invalid Value...");
-            return;
-	 }
-
-	 if(units > product_left)
-	 {
-	    System.out.print("\033[H\033[2J");
-            System.out.flush();
-	    System.out.println("Not enough stock at store to process order....");
-	    return;
-	 }	 
-	  
-	 //  Fetch ID
-         List<List<String>> IDs = esql.executeQueryAndReturnResult(String.format("SELECT DISTINCT u.userID FROM Users u WHERE u.name = '%s';", user));
-         String uID = IDs.get(0).get(0);
-
-         String query = String.format("INSERT INTO Orders(customerID, storeID, productName, unitsOrdered) VALUES( %s, %s, '%s', %s)", uID, store ,product, unitNumbers);
-         esql.executeUpdate(query); 
 
+	 //  Stock is checked and taken on the server, atomically with the insert
 	 System.out.print("\033[H\033[2J");
-         System.out.flush();	 
+         System.out.flush();
+         int orderNumber = esql.orderFor(session, Integer.parseInt(store), product, units);
+
 	 Timestamp timestamp = new Timestamp(System.currentTimeMillis());
-	 System.out.println(String.format("%s: Placed an order for %s %s units from %s", timestamp, unitNumbers, product, storeName));
+	 System.out.println(String.format("%s: Placed order #%d for %s %s units from %s", timestamp, orderNumber, unitNumbers, product, storeName));
 
 
       }catch(Exception e){
@@ -696,49 +2008,54 @@ public class Retail {
 
 
    }
-  public static void viewRecentOrders(Retail esql, String user) {
+  public static void viewRecentOrders(Retail esql, Session session) {
       
-      int value;    
+      // orders older than the last one shown; the first page starts at the top
+      int before = Integer.MAX_VALUE;
 	
       try{
+       while(true)
+       {
 	 System.out.print("\033[H\033[2J");
          System.out.flush();
-         System.out.println(String.format("%s's Recent orders: ", user));
+         System.out.println(String.format("%s's Recent orders: ", session.getName()));
 
-         String query = String.format("SELECT o.orderNumber, o.orderTime, s.name, o.productName, o.unitsOrdered FROM Orders o, Users u, Store s WHERE s.storeID = o.storeID AND customerID = userID AND u.name = '%s' ORDER BY orderNumber DESC LIMIT 5;", user);
-         List<List<String>> output = esql.executeQueryAndReturnResult(query);
+         List<Order> output = esql.orderHistory(session.getUserID(), before, PAGE_SIZE);
 
 	 System.out.println(" ______________________________________________________________________");
 	 System.out.println("| O#   | Timestamp                   | Store | Product         | Units |");
 	 System.out.println("|======+=============================+=======+=================+=======|");
 
-	  for(int i = 0; i < 5; i++)
+	  for(Order order : output)
            {
-              String orderNum = output.get(i).get(0).replaceAll(" ", "");
-              String time = output.get(i).get(1).replaceAll(" ", "");
-              String store = output.get(i).get(2).replaceAll(" ", "");;
-              String product = output.get(i).get(3).replaceAll(" ", "");;
-	      String units = output.get(i).get(4).replaceAll(" ", "");;
-              String statement = String.format("| %-4s | %-27s | %-5s | %-15s | %-5s |", orderNum, time, store, product, units);
+              String statement = String.format("| %-4d | %-27s | %-5s | %-15s | %-5d |", order.orderNumber, order.orderTime, order.storeName, order.productName, order.unitsOrdered);
               System.out.println(statement);
            }
            System.out.println(" =======================================================================\n");
 
+           //  A short page is the last one
+           if(output.size() < PAGE_SIZE)
+              return;
+           System.out.println("1. Older orders 2. Back");
+           if(readChoice() != 1)
+              return;
+           before = output.get(output.size() - 1).orderNumber;
+       }
+
       }catch(Exception e){
          System.err.println (e.getMessage ());
          return;
       }
 
 }
-    public static void updateProduct(Retail esql, String manager) {
+    public static void updateProduct(Retail esql, Session session) {
          boolean update = true;
 	 String value;
     try {
     while(update)
     {
       //   Check if user is admin or manager
-      String check = String.format("SELECT DISTINCT u.name FROM Users u, Store s WHERE s.managerID = userID AND u.name = '%s'", manager);
-      if(!checkIfManager(esql, manager) && !checkIfAdmin(esql, manager))
+      if(!session.isManager() && !session.isAdmin())
          {
             System.out.println("You are not authorized to do such action...");
             return;
@@ -752,29 +2069,30 @@ public class Retail {
       System.out.println("|=====+=======|");
       
       List<List<String>> managedStores;
-      if(checkIfAdmin(esql, manager))
+      if(session.isAdmin())
          managedStores = esql.executeQueryAndReturnResult("SELECT s.storeID, s.name FROM Store s, Users u WHERE u.userID = s.managerID");
       else
-       	 managedStores = esql.executeQueryAndReturnResult(String.format("SELECT s.storeID, s.name FROM Store s, Users u WHERE u.name = '%s' AND u.userID = s.managerID", manager));
+       	 managedStores = esql.executeQueryAndReturnResult("SELECT s.storeID, s.name FROM Store s WHERE s.managerID = ?", Integer.valueOf(session.getUserID()));
 
       String storeID, sname;
       for(List<String> row : managedStores)
       {
-	 storeID = row.get(0).replaceAll(" ", "");
-	 sname = row.get(1).replaceAll(" ", "");
+	 storeID = rtrim(row.get(0));
+	 sname = rtrim(row.get(1));
 	 System.out.println(String.format("| %-3s | %-5s |", storeID, sname));	 
       }
 
       System.out.println(" ==============\n");
       System.out.println("Insert Store ID: ");
       String store = in.readLine();
-      if((esql.executeQuery(String.format("SELECT s.storeID FROM Store s, Users u WHERE s.managerID = u.userID AND u.name = '%s' AND s.storeID = %s", manager , store)) == 0) && !manager.equals("Admin"))
+      // admins may name any store, so it may not exist
+      Store chosen = esql.getCatalog().getStore(Integer.parseInt(store));
+      if(chosen == null || (!session.isAdmin() && !esql.exists("SELECT 1 FROM Store s WHERE s.managerID = ? AND s.storeID = ?", Integer.valueOf(session.getUserID()), Integer.valueOf(store))))
       {
          System.out.println(String.format("This store does not exist or is not managed by you. Exiting..."));
          return;
       }
-      List<List<String>> output = esql.executeQueryAndReturnResult(String.format("SELECT name FROM Store WHERE storeID = %s", store));
-      String storeName = output.get(0).get(0);
+      String storeName = chosen.name;
       
       //   Clear screen
       System.out.print("\033[H\033[2J");
@@ -782,25 +2100,21 @@ public class Retail {
 
       //   List products sold at store
 
-          List<List<String>> productData = esql.executeQueryAndReturnResult(String.format("SELECT DISTINCT p.productName, p.pricePerUnit, p.numberOfUnits FROM Product p, Store s, Users u WHERE s.storeID = %s AND s.storeID = p.storeID;", store));
+          List<Product> productData = esql.getCatalog().getProducts(Integer.parseInt(store));
          System.out.print("Products sold at store ");
          System.out.println(storeName);
 
          System.out.println(" ___________________________________");
          System.out.println("| Product         | Price   | Units |");
          System.out.println("|=================+=========+=======|");
-         String pname, price, punits;
-         for(List<String> row : productData)
+         for(Product row : productData)
          {
-             pname = row.get(0).replaceAll(" ", "");
-             price = row.get(1).replaceAll(" ", "");
-             punits = row.get(2).replaceAll(" ", "");
-             System.out.println(String.format("| %-15s | %-7s | %-5s |", pname, price, punits));
+             System.out.println(String.format("| %-15s | %-7.2f | %-5d |", row.productName, row.pricePerUnit, row.numberOfUnits));
          }
          System.out.println(" ===================================\n");
       System.out.println("Insert Product: ");
       String product = in.readLine();
-      if(esql.executeQuery(String.format("SELECT DISTINCT p.productName, s.name FROM Product p, Store s, Users u WHERE u.userID = s.managerID AND s.storeID = p.storeID AND s.storeID = %s AND p.productName = '%s'", store, product)) == 0){
+      if(esql.getCatalog().getProduct(Integer.parseInt(store), product) == null){
             System.out.print("\033[H\033[2J");
          System.out.flush();
          System.out.print("This store does not hold the product: ");
@@ -808,13 +2122,6 @@ public class Retail {
          return;
       }
 
-      //  Get manager ID
-      List<List<String>> IDs = esql.executeQueryAndReturnResult(String.format("SELECT DISTINCT u.userID FROM Users u WHERE u.name = '%s'", manager));
-      String manID = IDs.get(0).get(0);
-      
-      //  Use trigger here to insert updateNumber and updatedOn values
-      esql.executeUpdate(String.format("INSERT INTO ProductUpdates(managerID, storeID, productName) VALUES (%s, %s,'%s');", manID, store, product));
-
       Timestamp timestamp = new Timestamp(System.currentTimeMillis());
 	
       //  Manager chooses what to update
@@ -825,7 +2132,7 @@ public class Retail {
            value = in.readLine();
            int units = Integer.parseInt(value);
 
-	   esql.executeUpdate(String.format("UPDATE Product SET numberOfUnits = %s WHERE storeID = %s AND productName = '%s';", value, store, product));
+	   esql.updateProductFor(session, Integer.parseInt(store), product, Integer.valueOf(units), null);
 
 	   System.out.print("\033[H\033[2J");
            System.out.flush();
@@ -836,9 +2143,9 @@ public class Retail {
         break;
         case 2: System.out.println("Price per Unit: ");
            value = in.readLine();
-           float new_price = Float.parseFloat(value);
+           double new_price = Double.parseDouble(value);
 
-	   esql.executeUpdate(String.format("UPDATE Product SET pricePerUnit = %s WHERE storeID = %s AND productName = '%s';", value, store, product));
+	   esql.updateProductFor(session, Integer.parseInt(store), product, null, Double.valueOf(new_price));
 
            System.out.print("\033[H\033[2J");
            System.out.flush();
@@ -867,83 +2174,89 @@ public class Retail {
 
 }
 
-   public static void viewRecentUpdates(Retail esql, String manager)
+   public static void viewRecentUpdates(Retail esql, Session session)
    {
       try
         {
-           String check = String.format("SELECT DISTINCT u.name FROM Users u, Store s WHERE s.managerID = userID AND u.name = '%s'", manager);
            //  Check to see if user is actually a manager
-           if(!checkIfManager(esql, manager) && !checkIfAdmin(esql, manager))
+           if(!session.isManager() && !session.isAdmin())
            {
               System.out.println("You are not authorized to do such action...");
               return;
            }
            System.out.print("\033[H\033[2J");
            System.out.flush();
-           String query = "";
-           if(checkIfAdmin(esql, manager))
-           {
-               query = "SELECT DISTINCT pu.updateNumber, s.name AS store, pu.productName AS product, pu.updatedOn FROM Users u, Store s, ProductUpdates pu, Warehouse w WHERE u.userID = pu.managerID AND s.storeID = pu.storeID ORDER BY pu.updateNumber DESC LIMIT 5;";
-           }else
+
+           //  Managers see their own updates, admins everyone's
+           Integer manager = session.isAdmin() ? null : Integer.valueOf(session.getUserID());
+
+           //  Optional filters, blank for none
+           System.out.print("Store ID (blank for all): ");
+           String value = in.readLine().trim();
+           Integer storeFilter = value.isEmpty() ? null : Integer.valueOf(value);
+           System.out.print("Product (blank for all): ");
+           value = in.readLine().trim();
+           String productFilter = value.isEmpty() ? null : value;
+           System.out.print("From date yyyy-mm-dd (blank for none): ");
+           value = in.readLine().trim();
+           Timestamp from = value.isEmpty() ? null : Timestamp.valueOf(value + " 00:00:00");
+           System.out.print("To date yyyy-mm-dd, inclusive (blank for none): ");
+           value = in.readLine().trim();
+           Timestamp to = value.isEmpty() ? null : new Timestamp(Timestamp.valueOf(value + " 00:00:00").getTime() + 24L * 60 * 60 * 1000);
+
+           ProductUpdate last = null;
+           while(true)
            {
-               query = String.format("SELECT DISTINCT pu.updateNumber, s.name AS store, pu.productName AS product, pu.updatedOn FROM Users u, Store s, ProductUpdates pu, Warehouse w WHERE u.userID = pu.managerID AND u.name = '%s' AND s.storeID = pu.storeID ORDER BY pu.updateNumber DESC LIMIT 5;", manager);
-           }
-           List<List<String>> output = esql.executeQueryAndReturnResult(query);
-           System.out.println(String.format("\n\nRecent updates for %s", manager));
+           List<ProductUpdate> output = esql.updateHistory(manager, storeFilter, productFilter, from, to, last, PAGE_SIZE);
+
+           System.out.print("\033[H\033[2J");
+           System.out.flush();
+           System.out.println(String.format("\n\nRecent updates for %s", session.getName()));
            System.out.println(" ___________________________________________________________________");
            System.out.println("| U#   | Store | Product              | Timestamp                   |");
            System.out.println("|======+=======+======================+=============================|");
            
-	    String orderNum, store, product, time, statement;
-		
-	   for(int i = 0; i < 5; i++)
+	   for(ProductUpdate row : output)
            {
-              orderNum = output.get(i).get(0).replaceAll(" ", "");
-              store = output.get(i).get(1).replaceAll(" ", "");
-              product = output.get(i).get(2).replaceAll(" ", "");
-              time = output.get(i).get(3).replaceAll(" ", "");
-              statement = String.format("| %-4s | %-5s | %-20s | %-27s |", orderNum, store, product, time);
+              String statement = String.format("| %-4d | %-5s | %-20s | %-27s |", row.updateNumber, row.storeName, row.productName, row.updatedOn);
               System.out.println(statement);
            }
            System.out.println("====================================================================\n");
+
+           //  A short page is the last one
+           if(output.size() < PAGE_SIZE)
+              return;
+           System.out.println("1. Older updates 2. Back");
+           if(readChoice() != 1)
+              return;
+           last = output.get(output.size() - 1);
+           }
         }catch(Exception e)
         {
             System.err.println(e.getMessage());
         }
    }
-   public static void viewPopularProducts(Retail esql, String manager)
+   public static void viewPopularProducts(Retail esql, Session session)
    {
       try
       {
-        String check = String.format("SELECT DISTINCT u.name FROM Users u, Store s WHERE s.managerID = userID AND u.name = '%s'", manager);
 
-        if(!checkIfManager(esql, manager) && !checkIfAdmin(esql, manager))
+        if(!session.isManager() && !session.isAdmin())
         {
            System.out.println("You are not authorized to do such action...");
            return;
         }
         System.out.print("\033[H\033[2J");
         System.out.flush();
-        String query = "";
-        if(checkIfAdmin(esql, manager))
-        {
-            query = "SELECT p.productName AS product, s.name AS store, o.unitsOrdered FROM Product p, Store s, Orders o, Users u WHERE p.storeID = s.storeID AND p.storeID = o.storeID AND p.productName = o.productName  AND s.managerID = u.userID ORDER BY o.unitsOrdered DESC LIMIT 5;";
-        }
-        else
-        {
-        query = String.format("SELECT p.productName AS product, s.name AS store, o.unitsOrdered FROM Product p, Store s, Orders o, Users u WHERE p.storeID = s.storeID AND p.storeID = o.storeID AND p.productName = o.productName  AND s.managerID = u.userID AND u.name = '%s' ORDER BY o.unitsOrdered DESC LIMIT 5;", manager);
-        }
-      List<List<String>> output = esql.executeQueryAndReturnResult(query);
-      System.out.println(String.format("\n\nPopular Items For %s", manager));
+        // top sellers from the ProductSales aggregate
+        List<ProductSales> output = esql.popularProducts(session, 5);
+      System.out.println(String.format("\n\nPopular Items For %s", session.getName()));
            System.out.println(" ________________________________________");
            System.out.println("| Store | Product              | Units   |");
            System.out.println("|=======+======================+=========|");
-           for(int i = 0; i < 5; i++)
+           for(ProductSales row : output)
            {
-              String product = output.get(i).get(0).replaceAll(" ", "");
-              String store = output.get(i).get(1).replaceAll(" ", "");
-              String units = output.get(i).get(2).replaceAll(" ", "");
-              String statement = String.format("| %-5s | %-20s | %-7s |",store,product,units);
+              String statement = String.format("| %-5s | %-20s | %-7d |", row.storeName, row.productName, row.totalUnits);
               System.out.println(statement);
            }
            System.out.println("==========================================\n");
@@ -953,38 +2266,45 @@ public class Retail {
          System.err.println(e.getMessage());
       }
    }
-   public static void viewPopularCustomers(Retail esql, String manager)
+   public static void viewPopularCustomers(Retail esql, Session session)
    {
       try
       {
-         String check = String.format("SELECT DISTINCT u.name FROM Users u, Store s WHERE s.managerID = userID AND u.name = '%s'", manager);
 
-         if(!checkIfManager(esql, manager) && !checkIfAdmin(esql, manager))
+         if(!session.isManager() && !session.isAdmin())
          {
             System.out.println("You are not authorized to do such action...");
             return;
          }
          System.out.print("\033[H\033[2J");
          System.out.flush();
-         String query = "";
-         if(checkIfAdmin(esql, manager))
-         {
-             query = "SELECT u.name, s.name, SUM(o.unitsOrdered) AS orders FROM Users u, Users manager , Store s, Orders o WHERE s.managerID = manager.userID AND u.userID = o.customerID AND o.storeID = s.storeID GROUP BY u.name, s.name ORDER BY orders DESC LIMIT 5;";
-         }else
+         // top customers from the in-memory ranking
+         List<CustomerRanking.Hit> output = esql.popularCustomers(session, 5);
+
+         // names of the customers shown, in one query
+         Map<Integer, String> names = new HashMap<Integer, String>();
+         if(!output.isEmpty())
          {
-             query = String.format("SELECT u.name, s.name, SUM(o.unitsOrdered) AS orders FROM Users u, Users manager , Store s, Orders o WHERE s.managerID = manager.userID AND manager.name = '%s' AND u.userID = o.customerID AND o.storeID = s.storeID GROUP BY u.name, s.name ORDER BY orders DESC LIMIT 5;", manager);
+             StringBuilder marks = new StringBuilder();
+             Object[] ids = new Object[output.size()];
+             for(int i = 0; i < ids.length; i++)
+             {
+                marks.append(i == 0 ? "?" : ", ?");
+                ids[i] = Integer.valueOf(output.get(i).customerID);
+             }
+             for(User u : esql.queryForList("SELECT " + User.COLUMNS + " FROM Users WHERE userID IN (" + marks + ")", User.MAPPER, ids))
+                names.put(Integer.valueOf(u.userID), u.name);
          }
-         List<List<String>> output = esql.executeQueryAndReturnResult(query);
-        System.out.println(String.format("\n\nPopular Customers For %s", manager));
+        System.out.println(String.format("\n\nPopular Customers For %s", session.getName()));
         System.out.println(" _________________________________________");
         System.out.println("| Store | Customer             | Orders   |");
         System.out.println("|=======+======================+==========|");
-        for(int i = 0; i < 5; i++)
+        for(CustomerRanking.Hit row : output)
         {
-           String customer = output.get(i).get(0).replaceAll(" ", "");
-           String store = output.get(i).get(1).replaceAll(" ", "");
-           String orders = output.get(i).get(2).replaceAll(" ", "");
-           String statement = String.format("| %-5s | %-20s | %-8s |",store,customer,orders);
+           String customer = names.containsKey(Integer.valueOf(row.customerID)) ? names.get(Integer.valueOf(row.customerID)) : String.valueOf(row.customerID);
+           Store location = esql.getCatalog().getStore(row.storeID);
+           String store = location == null ? String.valueOf(row.storeID) : location.name;
+           String statement = String.format("| %-5s | %-20s | %-8d |",store,customer,row.units);
            System.out.println(statement);
         }
         System.out.println("===========================================\n");
@@ -994,13 +2314,12 @@ public class Retail {
          System.err.println(e.getMessage());
       }
    }
-   public static void placeProductSupplyRequests(Retail esql, String manager)
+   public static void placeProductSupplyRequests(Retail esql, Session session)
    {
       try
       {
          //  Check if user is able to run this action
-         String check = String.format("SELECT DISTINCT u.name FROM Users u, Store s WHERE s.managerID = userID AND u.name = '%s'", manager);
-         if(!checkIfManager(esql, manager) && !checkIfAdmin(esql, manager))
+         if(!session.isManager() && !session.isAdmin())
          {
             System.out.println("You are not authorized to do such action...");
             return;
@@ -1012,27 +2331,27 @@ public class Retail {
          System.out.println("\nStores managed by you:\n");
          List<List<String>> stores;
 
-	 if(checkIfAdmin(esql, manager)) 
-	     stores = esql.executeQueryAndReturnResult(String.format("SELECT s.storeID, s.name FROM Store s, Users u WHERE u.userID = s.managerID", manager));
+	 if(session.isAdmin()) 
+	     stores = esql.executeQueryAndReturnResult("SELECT s.storeID, s.name FROM Store s, Users u WHERE u.userID = s.managerID");
 	 else
-	     stores = esql.executeQueryAndReturnResult(String.format("SELECT s.storeID, s.name FROM Store s, Users u WHERE u.name = '%s' AND u.userID = s.managerID", manager));
+	     stores = esql.executeQueryAndReturnResult("SELECT s.storeID, s.name FROM Store s WHERE s.managerID = ?", Integer.valueOf(session.getUserID()));
          System.out.println(" ____________ ");
 	 System.out.println("| S# | Name  |");
 	 System.out.println("|====+=======|");
 	 String id, sname;
 	 for(List<String> row : stores)
 	 {
-	    id = row.get(0).replaceAll(" ", "");
-	    sname = row.get(1).replaceAll(" ", "");
+	    id = rtrim(row.get(0));
+	    sname = rtrim(row.get(1));
 	    System.out.println(String.format("| %-2s | %-5s |", id, sname));
 	 }
 	 System.out.println(" ============ ");
          
          System.out.println("Insert Store ID: ");
          String store = in.readLine();
-	 if(checkIfAdmin(esql, manager))
+	 if(session.isAdmin())
          {
-             if(esql.executeQuery(String.format("SELECT s.storeID FROM Store s, Users u WHERE s.managerID = u.userID AND s.storeID = %s", store)) == 0)
+             if(esql.getCatalog().getStore(Integer.parseInt(store)) == null)
              {
                 System.out.println(String.format("This store does not exist or is not managed by you. Exiting..."));
                 return;
@@ -1040,14 +2359,13 @@ public class Retail {
 	 }
 	 else
          {
-             if(esql.executeQuery(String.format("SELECT s.storeID FROM Store s, Users u WHERE s.managerID = u.userID AND u.name = '%s' AND s.storeID = %s", manager , store)) == 0)
+             if(!esql.exists("SELECT 1 FROM Store s WHERE s.managerID = ? AND s.storeID = ?", Integer.valueOf(session.getUserID()), Integer.valueOf(store)))
              {
                 System.out.println(String.format("This store does not exist or is not managed by you. Exiting..."));
                 return;
              }
          }
-         List<List<String>> output = esql.executeQueryAndReturnResult(String.format("SELECT name FROM Store WHERE storeID = %s", store));
-         String storeName = output.get(0).get(0);
+         String storeName = esql.getCatalog().getStore(Integer.parseInt(store)).name;
 
          System.out.print("\033[H\033[2J");
          System.out.flush();
@@ -1056,19 +2374,16 @@ public class Retail {
 	 System.out.println(" ______________________________ ");
 	 System.out.println("| Name                 | Units |");
          System.out.println("|======================+=======|");
-         List<List<String>> productData = esql.executeQueryAndReturnResult(String.format("SELECT p.productName, p.numberOfUnits FROM Product p, Store s, Users u WHERE u.userID = s.managerID AND s.storeID = %s AND s.storeID = p.storeID;", store));
-         String pname, punits;
-	 for(List<String> row : productData)
+         List<Product> productData = esql.getCatalog().getProducts(Integer.parseInt(store));
+	 for(Product row : productData)
 	 {
-	    pname = row.get(0).replaceAll(" ", "");
-	    punits =  row.get(1).replaceAll(" ", "");
-	    System.out.println(String.format("| %-20s | %-5s |", pname, punits));
+	    System.out.println(String.format("| %-20s | %-5d |", row.productName, row.numberOfUnits));
 	 }
 
 	 System.out.println(" ============================== \n");
          System.out.println("Insert Product: ");
          String product = in.readLine();
-         if(esql.executeQuery(String.format("SELECT DISTINCT p.productName, s.name FROM Product p, Store s, Users u WHERE u.userID = s.managerID AND s.storeID = p.storeID AND s.storeID = %s AND p.productName = '%s'", store, product)) == 0){
+         if(esql.getCatalog().getProduct(Integer.parseInt(store), product) == null){
             System.out.print("\033[H\033[2J");
             System.out.flush();
             System.out.print("This store does not hold the product: ");
@@ -1079,29 +2394,28 @@ public class Retail {
          System.out.print("\033[H\033[2J");
          System.out.flush();
 
-         // Get warehouses, and calculate distance from store
-         output = esql.executeQueryAndReturnResult("SELECT w.WarehouseID, w.latitude, w.longitude FROM Warehouse w;");
-         List<List<String>> store_loc =  esql.executeQueryAndReturnResult(String.format("SELECT latitude, longitude FROM Store WHERE storeID = %s;", store));
+         // Nearest warehouses to the store, closest first
+         Store store_loc = esql.getCatalog().getStore(Integer.parseInt(store));
+         List<WarehouseRanking.Hit> warehouses = esql.nearestWarehouses(store_loc, WAREHOUSE_SUGGESTIONS);
 
-         System.out.println("\nAvailable Warehouses:\n __________________ ");
+         System.out.println("\nNearest Warehouses:\n __________________ ");
          System.out.println("| WH# | Distance   |");
          System.out.println("|=====+============|");
-         for(int i = 0; i < output.size(); i++)
+         for(WarehouseRanking.Hit w : warehouses)
          {
-            System.out.println(String.format("| %-3s | %-10f |", output.get(i).get(0), esql.calculateDistance(Double.parseDouble(output.get(i).get(1)), Double.parseDouble(output.get(i).get(2)), Double.parseDouble(store_loc.get(0).get(0)), Double.parseDouble(store_loc.get(0).get(1)))));
+            System.out.println(String.format("| %-3d | %-10f |", w.warehouse.warehouseID, w.distance));
          }
          System.out.println(" ==================\n ");
          System.out.println(String.format("\nITEM: %s\nSTORE: %s\n", product, storeName));
 
 
-         // Gte location of store to compare
-         output = esql.executeQueryAndReturnResult(String.format("SELECT name FROM Store WHERE storeID = %s", store));
-
-
-         // Find Product
-         System.out.println("Insert WarehouseID: ");
-         String warehouse = in.readLine();
-         if(esql.executeQuery(String.format("SELECT DISTINCT WarehouseID FROM Warehouse WHERE WarehouseID = %s", warehouse)) == 0)
+         // Find Product; an empty answer picks the nearest warehouse
+         String suggested = warehouses.isEmpty() ? "" : String.valueOf(warehouses.get(0).warehouse.warehouseID);
+         System.out.println(String.format("Insert WarehouseID [%s]: ", suggested));
+         String warehouse = in.readLine().trim();
+         if(warehouse.isEmpty())
+            warehouse = suggested;
+         if(esql.getCatalog().getWarehouse(Integer.parseInt(warehouse)) == null)
          {
             System.out.print("\033[H\033[2J");
             System.out.flush();
@@ -1113,21 +2427,8 @@ public class Retail {
          System.out.println("Insert # of units: ");
          String units = in.readLine();
          int intUnits = Integer.parseInt(units);
-         if(intUnits <= 0)
-         {
-            System.out.println("You must order more than 0 units");
-            return;
-         }
-         else if(intUnits >= 101)       //      Do an admin check?
-         {
-            System.out.println("An Admin must authorize orders of more than 100 units.");
-            return;
-         }
-         // Fetch manager ID
-         List<List<String>> IDs = esql.executeQueryAndReturnResult(String.format("SELECT DISTINCT u.userID FROM Users u WHERE u.name = '%s';", manager));
-         String manID = IDs.get(0).get(0);
          // Update Product Table
-         esql.executeUpdate(String.format("INSERT INTO ProductSupplyRequests(managerID, warehouseID, storeID, productName, unitsRequested) VALUES (%s, %s, %s, '%s', %s);", manID, warehouse, store, product, units));
+         esql.supplyRequestFor(session, Integer.parseInt(store), product, Integer.parseInt(warehouse), intUnits);
     
      //  This is probably where we should set up a trigger, so I'll leave this empty for now
          System.out.print("\033[H\033[2J");
@@ -1144,13 +2445,13 @@ public class Retail {
       }
    }
    
-   public static void viewUsers(Retail esql, String admin)
+   public static void viewUsers(Retail esql, Session session)
    {
 	try
          {
             System.out.print("\033[H\033[2J");
             System.out.flush();
-            if(!checkIfAdmin(esql, admin))
+            if(!session.isAdmin())
             {
                System.out.println("You are not authorised to change user information.");
                return;
@@ -1158,22 +2459,15 @@ public class Retail {
 
          System.out.print("Insert username or part of username: ");
          String part = in.readLine();
-         String query = "SELECT userID, name, type FROM Users WHERE name LIKE \'%";
-         query += part;
-         query += "%\' ORDER BY userID;";
-	 List<List<String>> allUsers = esql.executeQueryAndReturnResult(query);
+         List<User> matches = esql.searchUsers(part, SEARCH_LIMIT);
             System.out.print("\033[H\033[2J");
             System.out.flush();
             System.out.println("\n __________________________________________________ ");
             System.out.println("| ID  | Name                           | Type       |");
             System.out.println("|=====+================================+============|");
-            String id, name, type;
-            for(List<String> row : allUsers)
+            for(User row : matches)
             {
-               id = row.get(0);
-               name = row.get(1).replaceAll(" ", "");
-               type = row.get(2).replaceAll(" ","");
-               System.out.println(String.format("| %-3s | %-30s | %-10s |", id, name, type));
+               System.out.println(String.format("| %-3d | %-30s | %-10s |", row.userID, row.name, row.type));
             }
             System.out.println(" =================================================== \n");
 	   }
@@ -1184,13 +2478,13 @@ public class Retail {
    	}
    
 
-   public static void updateUserInfo(Retail esql, String admin)
+   public static void updateUserInfo(Retail esql, Session session)
    {
       try
       {
          System.out.print("\033[H\033[2J");
          System.out.flush();
-         if(!checkIfAdmin(esql, admin))
+         if(!session.isAdmin())
          {
             System.out.println("You are not authorised to change user information.");
             return;
@@ -1198,42 +2492,53 @@ public class Retail {
 
 	 System.out.print("Insert username or part of username: ");	 
 	 String part = in.readLine();
-         String query = "SELECT userID, name, type FROM Users WHERE name LIKE \'";
-         query += part;
-         query += "%\' ORDER BY userID;";
+         List<User> allUsers = esql.searchUsers(part, SEARCH_LIMIT);
 
-         while(esql.executeQuery(query) < 1 || esql.executeQuery(query) > 1)
+         //  Search until something matches
+         while(allUsers.isEmpty())
 	 {
-            List<List<String>> allUsers = esql.executeQueryAndReturnResult(query);
+            System.out.print("\033[H\033[2J");
+            System.out.flush();
+            System.out.println(String.format("No user name contains \"%s\".", part));
+	    System.out.print("Insert username or part of username: ");
+            part = in.readLine();
+            allUsers = esql.searchUsers(part, SEARCH_LIMIT);
+	 }
+
+         //  Pick the user by ID from the candidates already fetched
+         User target = allUsers.get(0);
+         if(allUsers.size() > 1)
+         {
             System.out.print("\033[H\033[2J");
             System.out.flush();
             
             System.out.println("\n __________________________________________________ ");
             System.out.println("| ID  | Name                           | Type       |");
             System.out.println("|=====+================================+============|");
-            String id, name, type;
-            for(List<String> row : allUsers)
+            for(User row : allUsers)
             {
-               id = row.get(0);
-               name = row.get(1).replaceAll(" ", "");
-               type = row.get(2).replaceAll(" ","");
-               System.out.println(String.format("| %-3s | %-30s | %-10s |", id, name, type));
+               System.out.println(String.format("| %-3d | %-30s | %-10s |", row.userID, row.name, row.type));
             }
             System.out.println(" =================================================== \n");
 
-	    System.out.print("Insert username or part of username: ");
-            part = in.readLine();
-			
-	    query = "SELECT userID, name, type FROM Users WHERE name LIKE \'%";
-            query += part;
-            query += "%\';";
-	}
-
-        //  Get ID of user
-        List<List<String>> UID_get = esql.executeQueryAndReturnResult(String.format("SELECT userID FROM Users WHERE name = '%s';", part));
-        String uid = UID_get.get(0).get(0);
+            System.out.print("Insert user ID: ");
+            int picked = Integer.parseInt(in.readLine().trim());
+            target = null;
+            for(User row : allUsers)
+            {
+               if(row.userID == picked)
+                  target = row;
+            }
+            if(target == null)
+            {
+               System.out.println("That user ID is not in the list...");
+               return;
+            }
+         }
+         part = target.name;
+         int uid = target.userID;
 
-	//  At this point, part must be a username, and we have ID#
+	//  At this point we have the user's name and ID#
         System.out.print("\033[H\033[2J");
         System.out.flush();
 
@@ -1242,11 +2547,6 @@ public class Retail {
         System.out.println("1. Name");
         System.out.println("2. Password");
 	System.out.println("3. Location");
-        if(checkIfAdmin(esql, uid))
-	{
-	    System.out.println("4. [M] Add managed Stores");
-            System.out.println("5. [M] Remove managed Stores");	
-	}
 
 	System.out.print("Input: ");
 
@@ -1255,7 +2555,7 @@ public class Retail {
 	   case 1:
 	      System.out.print(String.format("Insert %s\'s new name: ", part));
               String newName = in.readLine();
-	      if(newName.length() < 3 || esql.executeQuery(String.format("SELECT name FROM Users WHERE name = '%s';", newName)) != 0)
+	      if(newName.length() < 3 || esql.exists("SELECT 1 FROM Users WHERE name = CAST(? AS bpchar)", newName))
 	      {
 		  System.out.print("\033[H\033[2J");
                   System.out.flush();
@@ -1263,7 +2563,8 @@ public class Retail {
 		  return;
 	      }
 
-              esql.executeUpdate(String.format("UPDATE Users SET name = '%s' WHERE userID = %s", newName, uid));
+              esql.executeUpdate("UPDATE Users SET name = ? WHERE userID = ?", newName, Integer.valueOf(uid));
+              esql.invalidateUser(uid);
               
 	      System.out.print("\033[H\033[2J");
               System.out.flush();
@@ -1280,7 +2581,8 @@ public class Retail {
             	 return;
               }
 	      
-	      esql.executeUpdate(String.format("UPDATE Users SET password = '%s' WHERE userID = %s", password, uid));
+	      esql.executeUpdate("UPDATE Users SET password = ? WHERE userID = ?", password, Integer.valueOf(uid));
+	      esql.invalidateUser(uid);
 
               System.out.print("\033[H\033[2J");
               System.out.flush();
@@ -1305,7 +2607,8 @@ public class Retail {
 	       
 	       System.out.print("\033[H\033[2J");
                System.out.flush();
-	       esql.executeUpdate(String.format("UPDATE Users SET latitude = %s, longitude = %s WHERE userID = %s", latitude, longitude, uid));
+	       esql.executeUpdate("UPDATE Users SET latitude = ?, longitude = ? WHERE userID = ?", Double.valueOf(latitude), Double.valueOf(longitude), Integer.valueOf(uid));
+	       esql.invalidateUser(uid);
 	       System.out.println(String.format("\nChanged %s\'s location to (%s,%s)\n\n", part, latitude, longitude));	
 	       break;
            default:
@@ -1323,9 +2626,9 @@ public class Retail {
       }
    }
 
-   public static void peekManagerData(Retail esql, String admin)
+   public static void peekManagerData(Retail esql, Session session)
    {  try{
-	if(!checkIfAdmin(esql, admin))
+	if(!session.isAdmin())
 	{
 	    System.out.print("\033[H\033[2J");
             System.out.flush();
@@ -1335,20 +2638,19 @@ public class Retail {
 	System.out.print("\033[H\033[2J");
         System.out.flush();
         String query = "SELECT s.storeID, s.name, u.userID, u.name FROM Users u, Store s WHERE u.userID = s.managerID";
-        List<List<String>> manData = esql.executeQueryAndReturnResult(query);
 
 	System.out.println(" ____________________________________________________ ");
 	System.out.println("| S#  | SName | M#  | Manager Name                   |");
 	System.out.println("|=====+=======+=====+================================|");
-	String sID, sname, uID, uname;
-        for(List<String> row : manData)
-	{
-	    sID = row.get(0).replaceAll(" ", "");
-	    sname = row.get(1).replaceAll(" ", "");
-	    uID = row.get(2).replaceAll(" ", "");
-	    uname = row.get(3).replaceAll(" ", "");
-	    System.out.println(String.format("| %-3s | %-5s | %-3s | %-30s |",sID, sname, uID, uname));   
-	}
+        esql.executeQueryAndStream(query, new RowHandler() {
+	   public void handleRow(ResultSet row) throws SQLException {
+	      String sID = rtrim(row.getString(1));
+	      String sname = rtrim(row.getString(2));
+	      String uID = rtrim(row.getString(3));
+	      String uname = rtrim(row.getString(4));
+	      System.out.println(String.format("| %-3s | %-5s | %-3s | %-30s |",sID, sname, uID, uname));
+	   }
+	});
 	System.out.println(" ====================================================");
        }catch(Exception e)
       {
@@ -1357,36 +2659,18 @@ public class Retail {
       }
    }
 
-   public static boolean checkIfManager(Retail esql, String manager)
+   public static void viewStatistics(Retail esql, Session session)
    {
-      try
-      {
-         String check = String.format("SELECT DISTINCT u.name FROM Users u WHERE u.name = '%s' AND u.type = 'manager';", manager);
-         if(esql.executeQuery(check) == 0)
-            return false;
-         else
-	    return true;
-      }catch(Exception e)
-      {
-         System.err.println(e.getMessage());
-         return false;
-      }
-   }
- 
-   public static boolean checkIfAdmin(Retail esql, String admin)
-   {
-      try
-      {
-         String check = String.format("SELECT DISTINCT u.name FROM Users u WHERE u.name = '%s' AND u.type = 'admin';", admin);
-         if(esql.executeQuery(check) == 0)
-            return false;
-         else
-            return true;
-      }catch(Exception e)
+      System.out.print("\033[H\033[2J");
+      System.out.flush();
+      if(!session.isAdmin())
       {
-         System.err.println(e.getMessage());
-         return false;
+         System.out.println("Only an admin can use this function....");
+         return;
       }
+      // statements and menu actions since the client started, heaviest first
+      esql.dumpMetrics(System.out);
+      System.out.println();
    }
 
 }//end Retail
@@ -0,0 +1,330 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Micro-benchmarks of the Retail data access paths against a running
+ * database, loaded by create_db.sh and optionally multiplied by
+ * scale_data.sql (see java/scripts/bench.sh).
+ *
+ * Every benchmark is warmed up, then run by bench.threads threads for
+ * bench.seconds; the report gives throughput and latency percentiles.
+ * Writes (placeOrder) run inside a unit of work that is rolled back, so the
+ * data set does not drift between runs; the catalog cache and customer
+ * ranking are only touched on commit, so they do not drift either.
+ *
+ * Only calls that succeed count towards throughput and latency; a
+ * benchmark with failed calls fails the run.  With bench.out the results
+ * are saved as CSV; with bench.baseline a previous CSV is compared against
+ * and the run also fails when a benchmark's throughput dropped by more than
+ * bench.tolerance (default 0.2).
+ *
+ *    java RetailBenchmark <dbname> <port> <user>
+ *         [-Dbench.threads=1] [-Dbench.seconds=10] [-Dbench.warmupSeconds=5]
+ *         [-Dbench.only=viewStores,placeOrder] [-Dbench.out=results.csv]
+ *         [-Dbench.baseline=baseline.csv] [-Dbench.tolerance=0.2]
+ *
+ */
+public class RetailBenchmark {
+
+   /**
+    * One benchmarked operation; run() is called repeatedly from several
+    * threads, each with its own random generator.
+    */
+   private interface Operation {
+      void run(Random random) throws Exception;
+   }
+
+   private final Retail _esql;
+   private final int[] _storeIDs;
+   private final String[][] _products;
+   private final Session[] _customers;
+   private final Session _admin;
+   private final Session _manager;
+
+   // sink for pure computations, so the JIT cannot drop them.
+   private volatile double _sink;
+
+   private RetailBenchmark(Retail esql) throws SQLException {
+      this._esql = esql;
+      List<Store> stores = esql.queryForList("SELECT " + Store.COLUMNS + " FROM Store ORDER BY storeID", Store.MAPPER);
+      this._storeIDs = new int[stores.size()];
+      this._products = new String[stores.size()][];
+      for (int i = 0; i < stores.size(); ++i) {
+         this._storeIDs[i] = stores.get(i).storeID;
+         List<Product> products = esql.getCatalog().getProducts(this._storeIDs[i]);
+         this._products[i] = new String[products.size()];
+         for (int j = 0; j < products.size(); ++j)
+            this._products[i][j] = products.get(j).productName;
+      }//end for
+
+      List<User> customers = esql.queryForList("SELECT " + User.COLUMNS + " FROM Users WHERE type = 'customer' ORDER BY userID LIMIT 1000", User.MAPPER);
+      this._customers = new Session[customers.size()];
+      for (int i = 0; i < customers.size(); ++i)
+         this._customers[i] = Session.load(esql, customers.get(i).userID);
+      this._admin = first(esql, "admin");
+      this._manager = first(esql, "manager");
+   }//end RetailBenchmark
+
+   private static Session first(Retail esql, String type) throws SQLException {
+      User user = esql.queryForObject("SELECT " + User.COLUMNS + " FROM Users WHERE type = ? ORDER BY userID LIMIT 1", User.MAPPER, type);
+      if (user == null)
+         throw new SQLException("No " + type + " user loaded");
+      return Session.load(esql, user.userID);
+   }
+
+   private Map<String, Operation> operations() {
+      Map<String, Operation> ops = new java.util.LinkedHashMap<String, Operation>();
+      ops.put("calculateDistance", new Operation() {
+         public void run(Random random) {
+            _sink += _esql.calculateDistance(random.nextDouble() * 100, random.nextDouble() * 100,
+                                             random.nextDouble() * 100, random.nextDouble() * 100);
+         }
+      });
+      ops.put("executeQuery", new Operation() {
+         public void run(Random random) throws SQLException {
+            _esql.executeQuery("SELECT storeID, productName FROM Product WHERE storeID = ?", Integer.valueOf(store(random)));
+         }
+      });
+      ops.put("executeQueryAndReturnResult", new Operation() {
+         public void run(Random random) throws SQLException {
+            _esql.executeQueryAndReturnResult("SELECT storeID, productName, numberOfUnits, pricePerUnit FROM Product WHERE storeID = ?",
+                                              Integer.valueOf(store(random)));
+         }
+      });
+      ops.put("viewStores", new Operation() {
+         public void run(Random random) throws SQLException {
+            Session s = customer(random);
+            _esql.storesWithin(s.getLatitude(), s.getLongitude(), Retail.STORE_RADIUS);
+         }
+      });
+      ops.put("placeOrder", new Operation() {
+         public void run(Random random) throws SQLException {
+            int i = random.nextInt(_storeIDs.length);
+            if (_products[i].length == 0)
+               return;
+            String product = _products[i][random.nextInt(_products[i].length)];
+            _esql.begin();
+            try {
+               _esql.orderFor(_admin, _storeIDs[i], product, 1);
+            }catch (IllegalStateException e) {
+               // out of stock is a valid outcome.
+            }finally {
+               _esql.rollback();
+            }//end try
+         }
+      });
+      ops.put("viewPopularProducts", new Operation() {
+         public void run(Random random) throws SQLException {
+            _esql.popularProducts(random.nextBoolean() ? _admin : _manager, 5);
+         }
+      });
+      ops.put("viewPopularCustomers", new Operation() {
+         public void run(Random random) throws SQLException {
+            _esql.popularCustomers(random.nextBoolean() ? _admin : _manager, 5);
+         }
+      });
+      return ops;
+   }//end operations
+
+   private int store(Random random) {
+      return this._storeIDs[random.nextInt(this._storeIDs.length)];
+   }
+
+   private Session customer(Random random) {
+      return this._customers.length == 0 ? this._admin : this._customers[random.nextInt(this._customers.length)];
+   }
+
+   /**
+    * Measured latencies of one benchmark, in nanoseconds.
+    */
+   private static class Result {
+      final String name;
+      final long[] latencies;
+      final long errors;
+      final double seconds;
+
+      Result(String name, long[] latencies, long errors, double seconds) {
+         this.name = name;
+         this.latencies = latencies;
+         this.errors = errors;
+         this.seconds = seconds;
+      }
+
+      double throughput() {
+         return this.latencies.length / this.seconds;
+      }
+
+      double percentile(double p) {
+         if (this.latencies.length == 0)
+            return 0;
+         int i = (int) Math.ceil(p * this.latencies.length) - 1;
+         return this.latencies[Math.max(0, Math.min(this.latencies.length - 1, i))] / 1e6;
+      }
+   }//end Result
+
+   // runs op on threads threads for the given time and collects latencies.
+   private static Result measure(final String name, final Operation op, int threads, final long millis) throws InterruptedException {
+      final long[][] samples = new long[threads][];
+      final int[] counts = new int[threads];
+      final long[] errors = new long[threads];
+      Thread[] workers = new Thread[threads];
+      final long start = System.nanoTime();
+      final long deadline = start + millis * 1000000L;
+      for (int t = 0; t < threads; ++t) {
+         final int id = t;
+         workers[t] = new Thread(name + "-" + t) {
+            public void run() {
+               Random random = new Random(id * 7919L + 17);
+               long[] mine = new long[1024];
+               int n = 0;
+               long now = System.nanoTime();
+               while (now < deadline) {
+                  boolean ok = false;
+                  try {
+                     op.run(random);
+                     ok = true;
+                  }catch (Exception e) {
+                     if (errors[id]++ == 0)
+                        System.err.println(name + ": " + e.getMessage());
+                  }//end try
+                  long end = System.nanoTime();
+                  // a call that fails fast must not look like throughput
+                  if (ok) {
+                     if (n == mine.length)
+                        mine = Arrays.copyOf(mine, n * 2);
+                     mine[n++] = end - now;
+                  }//end if
+                  now = end;
+               }//end while
+               samples[id] = mine;
+               counts[id] = n;
+            }
+         };
+         workers[t].start();
+      }//end for
+      for (Thread w : workers)
+         w.join();
+      double seconds = (System.nanoTime() - start) / 1e9;
+
+      int total = 0;
+      long failed = 0;
+      for (int t = 0; t < threads; ++t) {
+         total += counts[t];
+         failed += errors[t];
+      }//end for
+      long[] all = new long[total];
+      int at = 0;
+      for (int t = 0; t < threads; ++t) {
+         System.arraycopy(samples[t], 0, all, at, counts[t]);
+         at += counts[t];
+      }//end for
+      Arrays.sort(all);
+      return new Result(name, all, failed, seconds);
+   }//end measure
+
+   private static Map<String, Double> readBaseline(String file) throws IOException {
+      Map<String, Double> baseline = new HashMap<String, Double>();
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+         String line = reader.readLine(); // header
+         while ((line = reader.readLine()) != null) {
+            String[] fields = line.split(",");
+            baseline.put(fields[0], Double.valueOf(fields[2]));
+         }//end while
+      }finally {
+         reader.close();
+      }//end try
+      return baseline;
+   }//end readBaseline
+
+   public static void main(String[] args) throws Exception {
+      if (args.length != 3) {
+         System.err.println("Usage: java [-classpath <classpath>] " + RetailBenchmark.class.getName()
+                            + " <dbname> <port> <user>");
+         return;
+      }//end if
+      int threads = Integer.getInteger("bench.threads", 1).intValue();
+      long seconds = Long.getLong("bench.seconds", 10L).longValue();
+      long warmup = Long.getLong("bench.warmupSeconds", 5L).longValue();
+      String only = System.getProperty("bench.only");
+      String out = System.getProperty("bench.out");
+      String baselineFile = System.getProperty("bench.baseline");
+      double tolerance = Double.parseDouble(System.getProperty("bench.tolerance", "0.2"));
+
+      Class.forName("org.postgresql.Driver").newInstance();
+      Retail esql = new Retail(args[0], args[1], args[2], "");
+      int regressions = 0;
+      int failing = 0;
+      try {
+         RetailBenchmark bench = new RetailBenchmark(esql);
+         List<String> selected = only == null ? null : Arrays.asList(only.split(","));
+         List<Result> results = new ArrayList<Result>();
+         for (Map.Entry<String, Operation> e : bench.operations().entrySet()) {
+            if (selected != null && !selected.contains(e.getKey()))
+               continue;
+            System.out.println("Running " + e.getKey() + " ...");
+            measure(e.getKey(), e.getValue(), threads, warmup * 1000);
+            results.add(measure(e.getKey(), e.getValue(), threads, seconds * 1000));
+         }//end for
+
+         System.out.println(String.format("\n%-28s %7s %10s %12s %9s %9s %9s %9s %9s %6s",
+                                          "benchmark", "threads", "ops", "ops/s", "p50 ms", "p90 ms",
+                                          "p99 ms", "p99.9 ms", "max ms", "errors"));
+         for (Result r : results) {
+            System.out.println(String.format("%-28s %7d %10d %12.1f %9.3f %9.3f %9.3f %9.3f %9.3f %6d",
+                                             r.name, threads, r.latencies.length, r.throughput(),
+                                             r.percentile(0.50), r.percentile(0.90), r.percentile(0.99),
+                                             r.percentile(0.999), r.percentile(1.0), r.errors));
+            if (r.errors > 0)
+               failing++;
+         }//end for
+
+         if (out != null) {
+            PrintWriter writer = new PrintWriter(new FileWriter(out));
+            try {
+               writer.println("benchmark,threads,opsPerSecond,p50ms,p90ms,p99ms,p999ms,maxms,errors");
+               for (Result r : results)
+                  writer.println(String.format(Locale.ROOT, "%s,%d,%.3f,%.4f,%.4f,%.4f,%.4f,%.4f,%d",
+                                               r.name, threads, r.throughput(), r.percentile(0.50),
+                                               r.percentile(0.90), r.percentile(0.99), r.percentile(0.999),
+                                               r.percentile(1.0), r.errors));
+            }finally {
+               writer.close();
+            }//end try
+         }//end if
+
+         if (baselineFile != null) {
+            Map<String, Double> baseline = readBaseline(baselineFile);
+            for (Result r : results) {
+               Double before = baseline.get(r.name);
+               if (before == null)
+                  continue;
+               double change = r.throughput() / before.doubleValue() - 1;
+               boolean regressed = change < -tolerance;
+               if (regressed)
+                  regressions++;
+               System.out.println(String.format("%-28s %+7.1f%% %s", r.name, change * 100,
+                                                r.errors > 0 ? "ERRORS" : regressed ? "REGRESSION" : "ok"));
+            }//end for
+         }//end if
+      }finally {
+         esql.cleanup();
+      }//end try
+      if (failing > 0)
+         System.err.println(failing + " benchmark(s) had failed calls");
+      if (regressions > 0 || failing > 0)
+         System.exit(1);
+   }//end main
+
+}//end RetailBenchmark
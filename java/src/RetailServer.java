@@ -0,0 +1,222 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves the Retail operations to many clients over a line protocol on
+ * TCP.  Every connection is one session with its own BatchRunner, so the
+ * commands are those of a batch script (login, stores, products, order,
+ * orders, update-units, ...).  Each command line gets one reply line,
+ * "ok|error <command> <latency> <result>".  Blank and comment lines get
+ * none.  "quit" closes the connection.  The batch commands "metrics" and
+ * "import-orders" are refused, since they write or read files on the
+ * server.
+ *
+ *    $ nc localhost 9166
+ *    retail ready
+ *    login Admin xyz
+ *    ok login 1.204ms Admin admin
+ *
+ * All sessions share one Retail, so its connection pool, statement caches
+ * and catalog cache.  Each session runs on its own thread: a virtual
+ * thread when the JVM has them (Java 21 and later), otherwise a thread
+ * from a cached pool.  At most maxActive commands run at once; the others
+ * wait on a semaphore, which parks virtual threads without holding a
+ * carrier.  This keeps the sessions from piling up in the connection pool
+ * and latency steady as the number of sessions grows.
+ *
+ * Tuned with the system properties retail.server.bind (127.0.0.1),
+ * retail.server.maxSessions (10000), retail.server.maxActive (the pool
+ * size) and retail.server.idleMillis (300000).
+ *
+ */
+public class RetailServer {
+
+   private final Retail _esql;
+   private final ServerSocket _listener;
+   private final ExecutorService _sessions;
+   private final boolean _virtual;
+   private final Semaphore _active;
+   private final int _maxSessions;
+   private final int _idleMillis;
+
+   private final AtomicInteger _sessionCount = new AtomicInteger();
+   private final Set<Socket> _sockets = Collections.synchronizedSet(new HashSet<Socket>());
+   private volatile boolean _running = true;
+
+   /**
+    * Opens the listening socket.
+    *
+    * @param esql the data access layer shared by every session
+    * @param port the TCP port to listen on
+    * @throws java.io.IOException when the port cannot be bound
+    */
+   public RetailServer(Retail esql, int port) throws IOException {
+      this._esql = esql;
+      this._maxSessions = Integer.getInteger("retail.server.maxSessions", 10000).intValue();
+      this._idleMillis = Integer.getInteger("retail.server.idleMillis", 300000).intValue();
+      this._active = new Semaphore(Integer.getInteger("retail.server.maxActive",
+            Integer.getInteger("retail.pool.maxSize", 8)).intValue(), true);
+
+      ExecutorService virtual = newVirtualThreadExecutor();
+      this._virtual = virtual != null;
+      this._sessions = virtual != null ? virtual : Executors.newCachedThreadPool();
+
+      this._listener = new ServerSocket();
+      this._listener.setReuseAddress(true);
+      this._listener.bind(new InetSocketAddress(
+            InetAddress.getByName(System.getProperty("retail.server.bind", "127.0.0.1")), port), 1024);
+   }//end RetailServer
+
+   // Executors.newVirtualThreadPerTaskExecutor() where the JVM has it.
+   private static ExecutorService newVirtualThreadExecutor() {
+      try {
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      }catch (Exception e) {
+         return null;
+      }//end try
+   }//end newVirtualThreadExecutor
+
+   /**
+    * Accepts connections until shutdown() is called.
+    */
+   public void serve() {
+      System.out.println("Serving on " + this._listener.getLocalSocketAddress()
+                         + (this._virtual ? " with virtual threads" : " with platform threads"));
+      try {
+         while (this._running) {
+            final Socket socket;
+            try {
+               socket = this._listener.accept();
+            }catch (IOException e) {
+               if (this._running)
+                  System.err.println("Accept failed: " + e.getMessage());
+               continue;
+            }//end try
+            if (this._sessionCount.incrementAndGet() > this._maxSessions) {
+               this._sessionCount.decrementAndGet();
+               reject(socket);
+               continue;
+            }//end if
+            this._sessions.execute(new Runnable() {
+               public void run() {
+                  try {
+                     session(socket);
+                  }finally {
+                     _sessionCount.decrementAndGet();
+                  }//end try
+               }
+            });
+         }//end while
+      }finally {
+         this._sessions.shutdown();
+         try {
+            this._sessions.awaitTermination(5, TimeUnit.SECONDS);
+         }catch (InterruptedException e) {
+            // give up waiting.
+         }//end try
+      }//end try
+   }//end serve
+
+   /**
+    * Stops accepting, closes every session and makes serve() return.
+    */
+   public void shutdown() {
+      this._running = false;
+      close(this._listener);
+      synchronized (this._sockets) {
+         for (Socket socket : this._sockets)
+            close(socket);
+      }//end synchronized
+   }//end shutdown
+
+   /**
+    * @return the number of open sessions
+    */
+   public int getSessionCount() {
+      return this._sessionCount.get();
+   }
+
+   // runs the commands of one connection.
+   private void session(Socket socket) {
+      this._sockets.add(socket);
+      try {
+         socket.setSoTimeout(this._idleMillis);
+         socket.setTcpNoDelay(true);
+         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+         Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+         BatchRunner runner = new BatchRunner(this._esql, false);
+         reply(out, "retail ready");
+         String line;
+         while (this._running && (line = in.readLine()) != null) {
+            List<String> words = BatchRunner.tokenize(line);
+            if (words.size() == 1 && words.get(0).equals("quit"))
+               break;
+            // clients must not choose files on the server
+            if (!words.isEmpty() && (words.get(0).equals("metrics") || words.get(0).equals("import-orders"))) {
+               reply(out, "error " + words.get(0) + " not available to remote sessions");
+               continue;
+            }//end if
+            String result;
+            this._active.acquire();
+            try {
+               result = runner.execute(line);
+            }finally {
+               this._active.release();
+            }//end try
+            if (result != null)
+               reply(out, result);
+         }//end while
+      }catch (SocketTimeoutException e) {
+         // idle too long.
+      }catch (IOException e) {
+         // the client went away.
+      }catch (InterruptedException e) {
+         // shutting down.
+      }finally {
+         this._sockets.remove(socket);
+         close(socket);
+      }//end try
+   }//end session
+
+   private static void reply(Writer out, String line) throws IOException {
+      out.write(line);
+      out.write('\n');
+      out.flush();
+   }
+
+   private static void reject(Socket socket) {
+      try {
+         reply(new OutputStreamWriter(socket.getOutputStream(), "UTF-8"), "error busy too many sessions");
+      }catch (IOException e) {
+         // ignored.
+      }//end try
+      close(socket);
+   }//end reject
+
+   private static void close(java.io.Closeable closeable) {
+      try {
+         closeable.close();
+      }catch (IOException e) {
+         // ignored.
+      }//end try
+   }
+
+}//end RetailServer
@@ -0,0 +1,113 @@
+import java.sql.SQLException;
+
+/**
+ * The user logged in to a Retail session.  LogIn resolves the row once and
+ * the menu actions read the user's id, type and location from here instead
+ * of querying Users by name on every step.
+ *
+ * When a Users row changes, Retail.invalidateUser bumps its version; the
+ * next call to validate() reloads the row.
+ *
+ */
+public class Session {
+
+   private int _userID;
+   private String _name;
+   private String _type;
+   private double _latitude;
+   private double _longitude;
+
+   // Retail.getUserVersion(_userID) at the time the row was loaded.
+   private int _version;
+
+   private Session(User user, int version) {
+      apply(user, version);
+   }
+
+   /**
+    * Checks a user's credentials and opens a session in one query.
+    *
+    * @param esql the database the user is stored in
+    * @param name the user name
+    * @param password the user password
+    * @return the session, or null if the combination does not match
+    * @throws java.sql.SQLException when the lookup failed
+    */
+   public static Session login(Retail esql, String name, String password) throws SQLException {
+      User user = esql.queryForObject("SELECT " + User.COLUMNS + " FROM Users WHERE name = CAST(? AS bpchar) AND password = CAST(? AS bpchar)",
+                                      User.MAPPER, name, password);
+      return user == null ? null : new Session(user, esql.getUserVersion(user.userID));
+   }//end login
+
+   /**
+    * Loads the session of a user.
+    *
+    * @param esql the database the user is stored in
+    * @param userID the id of the logged in user
+    * @return the session, or null if the user does not exist
+    * @throws java.sql.SQLException when the lookup failed
+    */
+   public static Session load(Retail esql, int userID) throws SQLException {
+      int version = esql.getUserVersion(userID);
+      User user = esql.queryForObject("SELECT " + User.COLUMNS + " FROM Users WHERE userID = ?",
+                                      User.MAPPER, Integer.valueOf(userID));
+      return user == null ? null : new Session(user, version);
+   }//end load
+
+   /**
+    * Reloads the user row if it was changed since it was loaded.
+    *
+    * @param esql the database the user is stored in
+    * @return false if the user no longer exists
+    * @throws java.sql.SQLException when the lookup failed
+    */
+   public boolean validate(Retail esql) throws SQLException {
+      int version = esql.getUserVersion(this._userID);
+      if (version == this._version)
+         return true;
+      User user = esql.queryForObject("SELECT " + User.COLUMNS + " FROM Users WHERE userID = ?",
+                                      User.MAPPER, Integer.valueOf(this._userID));
+      if (user == null)
+         return false;
+      apply(user, version);
+      return true;
+   }//end validate
+
+   public int getUserID() {
+      return this._userID;
+   }
+
+   public String getName() {
+      return this._name;
+   }
+
+   public String getType() {
+      return this._type;
+   }
+
+   public double getLatitude() {
+      return this._latitude;
+   }
+
+   public double getLongitude() {
+      return this._longitude;
+   }
+
+   public boolean isManager() {
+      return "manager".equalsIgnoreCase(this._type);
+   }
+
+   public boolean isAdmin() {
+      return "admin".equalsIgnoreCase(this._type);
+   }
+
+   private void apply(User user, int version) {
+      this._userID = user.userID;
+      this._name = user.name;
+      this._type = user.type;
+      this._latitude = user.latitude;
+      this._longitude = user.longitude;
+      this._version = version;
+   }
+
+}//end Session
@@ -0,0 +1,312 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A daemon thread that writes statements slower than a threshold to a
+ * local log file, together with their bound parameters and, on request,
+ * their EXPLAIN (ANALYZE, BUFFERS) plan.
+ *
+ * Callers only queue the statement, so a slow statement is not made
+ * slower.  When the queue is full, entries are dropped and counted.  The
+ * parameters of statements that mention a password are never written.
+ *
+ * Plans are only captured when asked for, and only for plain reads:
+ * SELECT ... FROM without FOR UPDATE/SHARE.  Writes and function calls
+ * such as SELECT place_order(...) would run a second time and take the
+ * same locks again.  The thread runs the EXPLAIN on its own connection
+ * outside the pool, in a READ ONLY transaction that it rolls back.  A
+ * template is explained at most once per explainIntervalMillis.
+ *
+ * The file is rotated when it grows past maxBytes: file becomes file.1,
+ * file.1 becomes file.2 and so on, and the oldest of keepFiles is deleted.
+ *
+ */
+public class SlowQueryLog extends Thread {
+
+   /**
+    * A slow statement waiting to be written.
+    */
+   private static class Entry {
+      final long time = System.currentTimeMillis();
+      final String sql;
+      final Object[] params;
+      final long nanos;
+
+      Entry(String sql, Object[] params, long nanos) {
+         this.sql = sql;
+         this.params = params;
+         this.nanos = nanos;
+      }
+   }//end Entry
+
+   // delay before reconnecting after the connection failed.
+   private static final long RETRY_MILLIS = 5000L;
+
+   private final String _url;
+   private final String _user;
+   private final String _passwd;
+   private final long _thresholdNanos;
+   private final File _file;
+   private final long _maxBytes;
+   private final int _keepFiles;
+   private final boolean _explain;
+   private final long _explainIntervalMillis;
+   private final long _explainTimeoutMillis;
+
+   private final BlockingQueue<Entry> _queue = new ArrayBlockingQueue<Entry>(256);
+   private final AtomicLong _dropped = new AtomicLong();
+   // template -> when it was last explained; only used by this thread
+   private final Map<String, Long> _explained = new HashMap<String, Long>();
+   private final SimpleDateFormat _format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+
+   private volatile boolean _running = true;
+   private Connection _connection = null;
+   private long _connectAfter = 0;
+
+   /**
+    * Creates the log; call start() to begin writing.
+    *
+    * @param url the JDBC connection URL
+    * @param user the user name used to login to the database
+    * @param passwd the user login password
+    * @param thresholdMillis statements taking at least this long are logged
+    * @param file the log file
+    * @param maxBytes the size at which the file is rotated
+    * @param keepFiles the number of rotated files kept
+    * @param explain whether plans are captured
+    * @param explainIntervalMillis the least time between plans of one template
+    * @param explainTimeoutMillis the statement_timeout of an EXPLAIN ANALYZE
+    */
+   public SlowQueryLog(String url, String user, String passwd, long thresholdMillis, File file,
+                       long maxBytes, int keepFiles, boolean explain, long explainIntervalMillis,
+                       long explainTimeoutMillis) {
+      super("SlowQueryLog");
+      setDaemon(true);
+      this._url = url;
+      this._user = user;
+      this._passwd = passwd;
+      this._thresholdNanos = thresholdMillis * 1000000L;
+      this._file = file;
+      this._maxBytes = maxBytes;
+      this._keepFiles = keepFiles;
+      this._explain = explain;
+      this._explainIntervalMillis = explainIntervalMillis;
+      this._explainTimeoutMillis = explainTimeoutMillis;
+   }//end SlowQueryLog
+
+   /**
+    * Queues a statement for the log if it took at least the threshold.
+    *
+    * @param sql the SQL template
+    * @param params the values bound to it, or null when there are several
+    *        rows (a batch) or none that can be shown
+    * @param nanos how long it took
+    */
+   public void check(String sql, Object[] params, long nanos) {
+      if (nanos < this._thresholdNanos)
+         return;
+      if (!this._queue.offer(new Entry(sql, params == null ? null : params.clone(), nanos)))
+         this._dropped.incrementAndGet();
+   }//end check
+
+   /**
+    * Writes the queued entries, stops the thread and closes its connection.
+    */
+   public void shutdown() {
+      this._running = false;
+      interrupt();
+      try {
+         join(2000);
+      }catch (InterruptedException e) {
+         // give up waiting.
+      }//end try
+   }//end shutdown
+
+   public void run() {
+      try {
+         while (this._running || !this._queue.isEmpty()) {
+            Entry entry;
+            try {
+               entry = this._running ? this._queue.poll(1, TimeUnit.SECONDS) : this._queue.poll();
+            }catch (InterruptedException e) {
+               continue;
+            }//end try
+            if (entry != null)
+               write(entry);
+         }//end while
+      }finally {
+         close();
+      }//end try
+   }//end run
+
+   private void write(Entry entry) {
+      StringBuilder text = new StringBuilder();
+      text.append(this._format.format(new Date(entry.time)))
+          .append(String.format(" slow statement %.3f ms", entry.nanos / 1e6));
+      long dropped = this._dropped.getAndSet(0);
+      if (dropped > 0)
+         text.append(" (").append(dropped).append(" earlier entries dropped)");
+      text.append("\nsql: ").append(entry.sql.replaceAll("\\s+", " ").trim());
+      boolean sensitive = sensitive(entry.sql);
+      if (entry.params != null)
+         text.append("\nparams: ").append(sensitive ? "(redacted)" : render(entry.params));
+      text.append('\n');
+      // the plan shows the bound values, so sensitive statements get none
+      if (this._explain && entry.params != null && !sensitive && readOnly(entry.sql) && due(entry.sql, entry.time)) {
+         text.append("plan:\n");
+         try {
+            explain(entry.sql, entry.params, text);
+         }catch (SQLException e) {
+            text.append("   (no plan: ").append(e.getMessage()).append(")\n");
+         }//end try
+      }//end if
+      text.append('\n');
+
+      try {
+         rotate(text.length());
+         Writer out = new FileWriter(this._file, true);
+         try {
+            out.write(text.toString());
+         }finally {
+            out.close();
+         }//end try
+      }catch (IOException e) {
+         System.err.println("Slow query log: " + e.getMessage());
+      }//end try
+   }//end write
+
+   // runs EXPLAIN ANALYZE in a read-only transaction that is always rolled back.
+   private void explain(String sql, Object[] params, StringBuilder text) throws SQLException {
+      Connection connection = connection();
+      try {
+         Statement setup = connection.createStatement();
+         try {
+            setup.execute("SET TRANSACTION READ ONLY");
+            setup.execute("SET LOCAL statement_timeout = " + this._explainTimeoutMillis);
+         }finally {
+            setup.close();
+         }//end try
+         PreparedStatement stmt = connection.prepareStatement("EXPLAIN (ANALYZE, BUFFERS) " + sql);
+         try {
+            for (int i = 0; i < params.length; ++i) {
+               if (params[i] == null)
+                  stmt.setNull(i + 1, Types.VARCHAR);
+               else
+                  stmt.setObject(i + 1, params[i]);
+            }//end for
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next())
+               text.append("   ").append(rs.getString(1)).append('\n');
+            rs.close();
+         }finally {
+            stmt.close();
+         }//end try
+      }catch (SQLException e) {
+         // a broken connection is replaced on the next plan.
+         if (this._connection != null && this._connection.isClosed())
+            close();
+         throw e;
+      }finally {
+         if (this._connection != null) {
+            try {
+               this._connection.rollback();
+            }catch (SQLException e) {
+               close();
+            }//end try
+         }//end if
+      }//end try
+   }//end explain
+
+   private Connection connection() throws SQLException {
+      if (this._connection != null)
+         return this._connection;
+      if (System.currentTimeMillis() < this._connectAfter)
+         throw new SQLException("not connected");
+      try {
+         this._connection = DriverManager.getConnection(this._url, this._user, this._passwd);
+         this._connection.setAutoCommit(false);
+         return this._connection;
+      }catch (SQLException e) {
+         this._connectAfter = System.currentTimeMillis() + RETRY_MILLIS;
+         close();
+         throw e;
+      }//end try
+   }//end connection
+
+   private void close() {
+      if (this._connection == null)
+         return;
+      try {
+         this._connection.close();
+      }catch (SQLException e) {
+         // ignored.
+      }//end try
+      this._connection = null;
+   }//end close
+
+   private boolean due(String sql, long now) {
+      Long last = this._explained.get(sql);
+      if (last != null && now - last.longValue() < this._explainIntervalMillis)
+         return false;
+      this._explained.put(sql, Long.valueOf(now));
+      return true;
+   }
+
+   // a query that reads tables, not a write, a locking read or a bare function call.
+   private static boolean readOnly(String sql) {
+      String text = " " + sql.replaceAll("\\s+", " ").trim().toUpperCase() + " ";
+      return text.startsWith(" SELECT ") && text.contains(" FROM ")
+         && !text.contains(" FOR UPDATE") && !text.contains(" FOR SHARE")
+         && !text.contains(" FOR NO KEY UPDATE") && !text.contains(" FOR KEY SHARE");
+   }
+
+   // statements that read or write Users.password
+   private static boolean sensitive(String sql) {
+      return sql.toLowerCase().contains("password");
+   }
+
+   private void rotate(long adding) {
+      if (this._file.length() + adding <= this._maxBytes || this._file.length() == 0)
+         return;
+      new File(this._file.getPath() + "." + this._keepFiles).delete();
+      for (int i = this._keepFiles - 1; i >= 1; --i)
+         new File(this._file.getPath() + "." + i).renameTo(new File(this._file.getPath() + "." + (i + 1)));
+      if (this._keepFiles > 0)
+         this._file.renameTo(new File(this._file.getPath() + ".1"));
+      else
+         this._file.delete();
+   }//end rotate
+
+   private static String render(Object[] params) {
+      StringBuilder text = new StringBuilder("[");
+      for (int i = 0; i < params.length; ++i) {
+         if (i > 0)
+            text.append(", ");
+         if (params[i] == null)
+            text.append("NULL");
+         else if (params[i] instanceof String)
+            text.append('\'').append(((String) params[i]).replace("'", "''")).append('\'');
+         else
+            text.append(params[i]);
+      }//end for
+      return text.append(']').toString();
+   }//end render
+
+}//end SlowQueryLog
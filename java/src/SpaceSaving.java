@@ -0,0 +1,150 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A weighted Space-Saving summary that tracks the heaviest keys of a
+ * stream in a fixed number of counters.  When a new key arrives and every
+ * counter is taken, the smallest counter is handed over to the new key and
+ * keeps its count, which becomes the new key's error bound.  Any key whose
+ * true weight exceeds total / capacity is guaranteed to be tracked, and a
+ * tracked count never underestimates: count - error <= true <= count.
+ *
+ * Counters live in a binary min-heap indexed from a hash map, so offer()
+ * is O(log capacity) and top(n) is O(capacity log capacity).
+ *
+ */
+public class SpaceSaving<K> {
+
+   /**
+    * A tracked key with its estimated weight.
+    */
+   public static class Entry<K> {
+      public final K key;
+      public final long count;
+      public final long error;
+
+      Entry(K key, long count, long error) {
+         this.key = key;
+         this.count = count;
+         this.error = error;
+      }
+   }//end Entry
+
+   private static class Counter<K> {
+      K key;
+      long count;
+      long error;
+      int position;
+   }//end Counter
+
+   private final int _capacity;
+   private final HashMap<K, Counter<K>> _counters;
+   private final Counter<K>[] _heap;
+   private int _size = 0;
+   private long _total = 0;
+
+   /**
+    * Creates an empty summary.
+    *
+    * @param capacity the number of counters, at least 1
+    */
+   @SuppressWarnings("unchecked")
+   public SpaceSaving(int capacity) {
+      this._capacity = Math.max(1, capacity);
+      this._counters = new HashMap<K, Counter<K>>(this._capacity * 2);
+      this._heap = (Counter<K>[]) new Counter<?>[this._capacity];
+   }//end SpaceSaving
+
+   /**
+    * Adds weight to a key.
+    *
+    * @param key the key seen
+    * @param weight its weight, e.g. the units of an order
+    */
+   public synchronized void offer(K key, long weight) {
+      this._total += weight;
+      Counter<K> c = this._counters.get(key);
+      if (c == null) {
+         if (this._size < this._capacity) {
+            // a new leaf may be smaller than its parents
+            c = new Counter<K>();
+            c.key = key;
+            c.count = weight;
+            c.position = this._size;
+            this._heap[this._size++] = c;
+            this._counters.put(key, c);
+            siftUp(c.position);
+            return;
+         }else {
+            // take over the smallest counter
+            c = this._heap[0];
+            this._counters.remove(c.key);
+            c.error = c.count;
+         }//end if
+         c.key = key;
+         this._counters.put(key, c);
+      }//end if
+      c.count += weight;
+      siftDown(c.position);
+   }//end offer
+
+   /**
+    * @return at most n tracked keys, heaviest first
+    */
+   public synchronized List<Entry<K>> top(int n) {
+      List<Entry<K>> entries = new ArrayList<Entry<K>>(this._size);
+      for (int i = 0; i < this._size; ++i)
+         entries.add(new Entry<K>(this._heap[i].key, this._heap[i].count, this._heap[i].error));
+      Collections.sort(entries, new Comparator<Entry<K>>() {
+         public int compare(Entry<K> a, Entry<K> b) {
+            return a.count < b.count ? 1 : a.count > b.count ? -1 : 0;
+         }
+      });
+      return entries.subList(0, Math.min(n, entries.size()));
+   }//end top
+
+   /**
+    * @return the total weight offered so far
+    */
+   public synchronized long getTotal() {
+      return this._total;
+   }
+
+   // moves a newly added counter up to its place in the min-heap.
+   private void siftUp(int i) {
+      Counter<K> c = this._heap[i];
+      while (i > 0) {
+         int parent = (i - 1) / 2;
+         if (this._heap[parent].count <= c.count)
+            break;
+         this._heap[i] = this._heap[parent];
+         this._heap[i].position = i;
+         i = parent;
+      }//end while
+      this._heap[i] = c;
+      c.position = i;
+   }//end siftUp
+
+   // counts only grow, so a tracked counter can only move down the min-heap.
+   private void siftDown(int i) {
+      Counter<K> c = this._heap[i];
+      while (true) {
+         int child = 2 * i + 1;
+         if (child >= this._size)
+            break;
+         if (child + 1 < this._size && this._heap[child + 1].count < this._heap[child].count)
+            child++;
+         if (this._heap[child].count >= c.count)
+            break;
+         this._heap[i] = this._heap[child];
+         this._heap[i].position = i;
+         i = child;
+      }//end while
+      this._heap[i] = c;
+      c.position = i;
+   }//end siftDown
+
+}//end SpaceSaving
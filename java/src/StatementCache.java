@@ -0,0 +1,134 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.postgresql.PGStatement;
+
+/**
+ * This class keeps the prepared statements of one physical connection,
+ * keyed by their SQL template. Statements are compiled the first time a
+ * template is seen and reused afterwards, so the driver parses each
+ * template once per connection. The least recently used statement is
+ * closed once the cache is full.
+ *
+ * The pg73 driver only substitutes the parameters into the SQL text by
+ * default, so the server would still parse and plan every execution.
+ * Cached SELECT, INSERT, UPDATE and DELETE statements are therefore
+ * switched to server-side prepare: the first execution sends PREPARE, later
+ * ones only EXECUTE.  Set retail.serverPrepare=false to compare.  A
+ * statement whose first execution failed may not exist on the server, so
+ * callers evict a statement when it fails.
+ *
+ */
+public class StatementCache {
+
+   // default number of statements kept open per connection.
+   public static final int DEFAULT_CAPACITY = 64;
+
+   // whether cached statements are prepared on the server.
+   static final boolean SERVER_PREPARE = !"false".equals(System.getProperty("retail.serverPrepare"));
+
+   // connection the cached statements belong to.
+   private final Connection _connection;
+
+   // statements in access order, eldest first.
+   private final LinkedHashMap<String, PreparedStatement> _statements;
+
+   /**
+    * Creates a new statement cache
+    *
+    * @param connection the physical connection to prepare statements on
+    * @param capacity maximum number of statements kept open
+    */
+   public StatementCache(Connection connection, final int capacity) {
+      this._connection = connection;
+      this._statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+         protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+            if (size() <= capacity)
+               return false;
+            closeQuietly(eldest.getValue());
+            return true;
+         }
+      };
+   }//end StatementCache
+
+   /**
+    * Returns the prepared statement for an SQL template, compiling it on
+    * first use.
+    *
+    * @param sql the SQL template, with '?' for every parameter
+    * @return the cached prepared statement
+    * @throws java.sql.SQLException when the statement cannot be prepared
+    */
+   public PreparedStatement prepare(String sql) throws SQLException {
+      return prepare(sql, true);
+   }
+
+   /**
+    * Same as prepare(sql), but leaves a new statement to the driver's
+    * client-side substitution when onServer is false, e.g. because the
+    * server would type a parameter differently from the SQL text.
+    */
+   public PreparedStatement prepare(String sql, boolean onServer) throws SQLException {
+      PreparedStatement stmt = this._statements.get(sql);
+      if (stmt == null) {
+         stmt = this._connection.prepareStatement(sql);
+         if (SERVER_PREPARE && onServer && preparable(sql) && stmt instanceof PGStatement)
+            ((PGStatement) stmt).setUseServerPrepare(true);
+         this._statements.put(sql, stmt);
+      }//end if
+      return stmt;
+   }//end prepare
+
+   // PREPARE only takes these statements.
+   private static boolean preparable(String sql) {
+      String head = sql.trim();
+      int end = 0;
+      while (end < head.length() && Character.isLetter(head.charAt(end)))
+         ++end;
+      head = head.substring(0, end).toUpperCase();
+      return head.equals("SELECT") || head.equals("INSERT") || head.equals("UPDATE") || head.equals("DELETE");
+   }
+
+   /**
+    * Drops a statement from the cache, e.g. after it failed and may be
+    * left in an unusable state.
+    *
+    * @param sql the SQL template of the statement
+    */
+   public void evict(String sql) {
+      closeQuietly(this._statements.remove(sql));
+   }//end evict
+
+   /**
+    * @return the number of statements currently cached
+    */
+   public int size() {
+      return this._statements.size();
+   }
+
+   /**
+    * Closes every cached statement.
+    */
+   public void clear() {
+      Iterator<PreparedStatement> it = this._statements.values().iterator();
+      while (it.hasNext()) {
+         closeQuietly(it.next());
+         it.remove();
+      }//end while
+   }//end clear
+
+   private static void closeQuietly(PreparedStatement stmt) {
+      if (stmt == null)
+         return;
+      try {
+         stmt.close();
+      }catch (SQLException e) {
+         // ignored.
+      }//end try
+   }
+
+}//end StatementCache
@@ -0,0 +1,34 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A row of the Store table.  Queries that map to this class must select
+ * COLUMNS, in that order.
+ *
+ */
+public class Store {
+
+   public static final String COLUMNS = "storeID, name, latitude, longitude, managerID";
+
+   public static final Retail.RowMapper<Store> MAPPER = new Retail.RowMapper<Store>() {
+      public Store mapRow(ResultSet rs) throws SQLException {
+         return new Store(rs.getInt(1), Retail.rtrim(rs.getString(2)),
+                          rs.getDouble(3), rs.getDouble(4), rs.getInt(5));
+      }
+   };
+
+   public final int storeID;
+   public final String name;
+   public final double latitude;
+   public final double longitude;
+   public final int managerID;
+
+   public Store(int storeID, String name, double latitude, double longitude, int managerID) {
+      this.storeID = storeID;
+      this.name = name;
+      this.latitude = latitude;
+      this.longitude = longitude;
+      this.managerID = managerID;
+   }
+
+}//end Store
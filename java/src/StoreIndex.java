@@ -0,0 +1,199 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * An immutable uniform-grid index over store coordinates.  Stores are
+ * bucketed into square cells of cellSize units; a radius query only looks
+ * at the cells overlapping the circle's bounding box and a k-nearest query
+ * searches rings of cells outward from the query point.  Distances are the
+ * same euclidean distances Retail.calculateDistance computes.
+ *
+ * The index is a snapshot: build a new one when the Store table changes.
+ *
+ */
+public class StoreIndex {
+
+   /**
+    * A store found by a query, with its distance from the query point.
+    */
+   public static class Hit {
+      public final Store store;
+      public final double distance;
+
+      Hit(Store store, double distance) {
+         this.store = store;
+         this.distance = distance;
+      }
+   }//end Hit
+
+   private static final Comparator<Hit> BY_DISTANCE = new Comparator<Hit>() {
+      public int compare(Hit a, Hit b) {
+         int c = Double.compare(a.distance, b.distance);
+         return c != 0 ? c : a.store.storeID - b.store.storeID;
+      }
+   };
+
+   private final Store[] _stores;
+   private final double _cellSize;
+   private final double _minLat;
+   private final double _minLong;
+   private final int _rows;
+   private final int _cols;
+
+   // stores of cell c are _members[_cellStart[c] .. _cellStart[c + 1] - 1].
+   private final int[] _cellStart;
+   private final int[] _members;
+
+   /**
+    * Builds the index.
+    *
+    * @param stores every store to index
+    * @param cellSize the side of a grid cell, in coordinate units
+    */
+   public StoreIndex(List<Store> stores, double cellSize) {
+      this._stores = stores.toArray(new Store[stores.size()]);
+      this._cellSize = cellSize;
+
+      double minLat = 0, minLong = 0, maxLat = 0, maxLong = 0;
+      for (int i = 0; i < this._stores.length; ++i) {
+         Store s = this._stores[i];
+         if (i == 0 || s.latitude < minLat) minLat = s.latitude;
+         if (i == 0 || s.longitude < minLong) minLong = s.longitude;
+         if (i == 0 || s.latitude > maxLat) maxLat = s.latitude;
+         if (i == 0 || s.longitude > maxLong) maxLong = s.longitude;
+      }//end for
+      this._minLat = minLat;
+      this._minLong = minLong;
+      this._rows = (int) Math.floor((maxLat - minLat) / cellSize) + 1;
+      this._cols = (int) Math.floor((maxLong - minLong) / cellSize) + 1;
+
+      // counting sort of the stores by cell
+      int cells = this._rows * this._cols;
+      this._cellStart = new int[cells + 1];
+      int[] cellOf = new int[this._stores.length];
+      for (int i = 0; i < this._stores.length; ++i) {
+         cellOf[i] = row(this._stores[i].latitude) * this._cols + col(this._stores[i].longitude);
+         this._cellStart[cellOf[i] + 1]++;
+      }//end for
+      for (int c = 0; c < cells; ++c)
+         this._cellStart[c + 1] += this._cellStart[c];
+      this._members = new int[this._stores.length];
+      int[] fill = new int[cells];
+      for (int i = 0; i < this._stores.length; ++i)
+         this._members[this._cellStart[cellOf[i]] + fill[cellOf[i]]++] = i;
+   }//end StoreIndex
+
+   /**
+    * @return the number of indexed stores
+    */
+   public int size() {
+      return this._stores.length;
+   }
+
+   /**
+    * Finds the stores within radius of a point.
+    *
+    * @return the stores within radius, nearest first
+    */
+   public List<Hit> within(double lat, double lon, double radius) {
+      List<Hit> hits = new ArrayList<Hit>();
+      if (this._stores.length == 0)
+         return hits;
+      int r0 = clampRow(row(lat - radius)), r1 = clampRow(row(lat + radius));
+      int c0 = clampCol(col(lon - radius)), c1 = clampCol(col(lon + radius));
+      for (int r = r0; r <= r1; ++r) {
+         for (int c = c0; c <= c1; ++c) {
+            int cell = r * this._cols + c;
+            for (int m = this._cellStart[cell]; m < this._cellStart[cell + 1]; ++m) {
+               Store s = this._stores[this._members[m]];
+               double dist = distance(lat, lon, s);
+               if (dist <= radius)
+                  hits.add(new Hit(s, dist));
+            }//end for
+         }//end for
+      }//end for
+      Collections.sort(hits, BY_DISTANCE);
+      return hits;
+   }//end within
+
+   /**
+    * Finds the k stores nearest to a point.
+    *
+    * @return at most k stores, nearest first
+    */
+   public List<Hit> nearest(double lat, double lon, int k) {
+      // max-heap of the best k hits so far
+      PriorityQueue<Hit> best = new PriorityQueue<Hit>(Math.max(1, k), Collections.reverseOrder(BY_DISTANCE));
+      if (k > 0 && this._stores.length > 0) {
+         int r = row(lat), c = col(lon);
+         int maxRing = Math.max(Math.max(r, this._rows - 1 - r), Math.max(c, this._cols - 1 - c));
+         for (int ring = 0; ring <= maxRing; ++ring) {
+            // every store in a farther ring is at least this far away
+            double ringDistance = Math.max(0, ring - 1) * this._cellSize;
+            if (best.size() == k && best.peek().distance < ringDistance)
+               break;
+            for (int dr = -ring; dr <= ring; ++dr) {
+               for (int dc = -ring; dc <= ring; ++dc) {
+                  if (Math.abs(dr) != ring && Math.abs(dc) != ring)
+                     continue;
+                  int rr = r + dr, cc = c + dc;
+                  if (rr < 0 || rr >= this._rows || cc < 0 || cc >= this._cols)
+                     continue;
+                  int cell = rr * this._cols + cc;
+                  for (int m = this._cellStart[cell]; m < this._cellStart[cell + 1]; ++m) {
+                     Store s = this._stores[this._members[m]];
+                     Hit hit = new Hit(s, distance(lat, lon, s));
+                     if (best.size() < k)
+                        best.add(hit);
+                     else if (BY_DISTANCE.compare(hit, best.peek()) < 0) {
+                        best.poll();
+                        best.add(hit);
+                     }//end if
+                  }//end for
+               }//end for
+            }//end for
+         }//end for
+      }//end if
+      List<Hit> hits = new ArrayList<Hit>(best);
+      Collections.sort(hits, BY_DISTANCE);
+      return hits;
+   }//end nearest
+
+   /**
+    * @return every store with its distance from a point, nearest first
+    */
+   public List<Hit> all(double lat, double lon) {
+      List<Hit> hits = new ArrayList<Hit>(this._stores.length);
+      for (Store s : this._stores)
+         hits.add(new Hit(s, distance(lat, lon, s)));
+      Collections.sort(hits, BY_DISTANCE);
+      return hits;
+   }//end all
+
+   private static double distance(double lat, double lon, Store s) {
+      double t1 = (lat - s.latitude) * (lat - s.latitude);
+      double t2 = (lon - s.longitude) * (lon - s.longitude);
+      return Math.sqrt(t1 + t2);
+   }
+
+   // grid coordinates; may fall outside the grid for query points.
+   private int row(double lat) {
+      return (int) Math.floor((lat - this._minLat) / this._cellSize);
+   }
+
+   private int col(double lon) {
+      return (int) Math.floor((lon - this._minLong) / this._cellSize);
+   }
+
+   private int clampRow(int r) {
+      return Math.max(0, Math.min(this._rows - 1, r));
+   }
+
+   private int clampCol(int c) {
+      return Math.max(0, Math.min(this._cols - 1, c));
+   }
+
+}//end StoreIndex
@@ -0,0 +1,34 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A row of the Users table, without the password.  Queries that map to
+ * this class must select COLUMNS, in that order.
+ *
+ */
+public class User {
+
+   public static final String COLUMNS = "userID, name, type, latitude, longitude";
+
+   public static final Retail.RowMapper<User> MAPPER = new Retail.RowMapper<User>() {
+      public User mapRow(ResultSet rs) throws SQLException {
+         return new User(rs.getInt(1), Retail.rtrim(rs.getString(2)), Retail.rtrim(rs.getString(3)),
+                         rs.getDouble(4), rs.getDouble(5));
+      }
+   };
+
+   public final int userID;
+   public final String name;
+   public final String type;
+   public final double latitude;
+   public final double longitude;
+
+   public User(int userID, String name, String type, double latitude, double longitude) {
+      this.userID = userID;
+      this.name = name;
+      this.type = type;
+      this.latitude = latitude;
+      this.longitude = longitude;
+   }
+
+}//end User
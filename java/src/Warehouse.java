@@ -0,0 +1,31 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * A row of the Warehouse table.  Queries that map to this class must
+ * select COLUMNS, in that order.
+ *
+ */
+public class Warehouse {
+
+   public static final String COLUMNS = "WarehouseID, area, latitude, longitude";
+
+   public static final Retail.RowMapper<Warehouse> MAPPER = new Retail.RowMapper<Warehouse>() {
+      public Warehouse mapRow(ResultSet rs) throws SQLException {
+         return new Warehouse(rs.getInt(1), rs.getInt(2), rs.getDouble(3), rs.getDouble(4));
+      }
+   };
+
+   public final int warehouseID;
+   public final int area;
+   public final double latitude;
+   public final double longitude;
+
+   public Warehouse(int warehouseID, int area, double latitude, double longitude) {
+      this.warehouseID = warehouseID;
+      this.area = area;
+      this.latitude = latitude;
+      this.longitude = longitude;
+   }
+
+}//end Warehouse
@@ -0,0 +1,91 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The store-to-warehouse distance matrix used by supply requests.  Each row
+ * holds every warehouse sorted by its distance from one store, so the k
+ * nearest warehouses are the first k entries of the row.
+ *
+ * Rows are computed the first time a store is ranked and kept until the
+ * ranking is replaced; Retail builds a new ranking whenever the Store or
+ * Warehouse table changes.
+ *
+ */
+public class WarehouseRanking {
+
+   /**
+    * A warehouse with its distance from the ranked store.
+    */
+   public static class Hit {
+      public final Warehouse warehouse;
+      public final double distance;
+
+      Hit(Warehouse warehouse, double distance) {
+         this.warehouse = warehouse;
+         this.distance = distance;
+      }
+   }//end Hit
+
+   private static final Comparator<Hit> BY_DISTANCE = new Comparator<Hit>() {
+      public int compare(Hit a, Hit b) {
+         int c = Double.compare(a.distance, b.distance);
+         return c != 0 ? c : a.warehouse.warehouseID - b.warehouse.warehouseID;
+      }
+   };
+
+   private final Warehouse[] _warehouses;
+
+   // storeID -> every warehouse, nearest first.
+   private final ConcurrentHashMap<Integer, Hit[]> _rows = new ConcurrentHashMap<Integer, Hit[]>();
+
+   /**
+    * Creates an empty matrix over a snapshot of the warehouses.
+    *
+    * @param warehouses every warehouse
+    */
+   public WarehouseRanking(List<Warehouse> warehouses) {
+      this._warehouses = warehouses.toArray(new Warehouse[warehouses.size()]);
+   }
+
+   /**
+    * Finds the warehouses nearest to a store.
+    *
+    * @param store the store supplies are sent to
+    * @param k the number of warehouses wanted
+    * @return at most k warehouses, nearest first
+    */
+   public List<Hit> nearest(Store store, int k) {
+      Hit[] row = row(store);
+      return Collections.unmodifiableList(Arrays.asList(row).subList(0, Math.min(k, row.length)));
+   }//end nearest
+
+   /**
+    * @return the number of warehouses ranked
+    */
+   public int size() {
+      return this._warehouses.length;
+   }
+
+   // computes a row on first use; two threads may race, both get the same.
+   private Hit[] row(Store store) {
+      Integer key = Integer.valueOf(store.storeID);
+      Hit[] row = this._rows.get(key);
+      if (row != null)
+         return row;
+      row = new Hit[this._warehouses.length];
+      for (int i = 0; i < this._warehouses.length; ++i) {
+         Warehouse w = this._warehouses[i];
+         double t1 = (w.latitude - store.latitude) * (w.latitude - store.latitude);
+         double t2 = (w.longitude - store.longitude) * (w.longitude - store.longitude);
+         row[i] = new Hit(w, Math.sqrt(t1 + t2));
+      }//end for
+      Arrays.sort(row, BY_DISTANCE);
+      Hit[] existing = this._rows.putIfAbsent(key, row);
+      return existing != null ? existing : row;
+   }//end row
+
+}//end WarehouseRanking
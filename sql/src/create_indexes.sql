@@ -1,5 +1,6 @@
 DROP INDEX IF EXISTS user_ID;
 DROP INDEX IF EXISTS user_name;
+DROP INDEX IF EXISTS user_name_trgm;
 
 CREATE INDEX user_ID
 ON Users
@@ -9,6 +10,13 @@ CREATE INDEX user_name
 ON Users
 USING BTREE (name);
 
+-- substring search on user names, see Retail.searchUsers
+CREATE EXTENSION IF NOT EXISTS pg_trgm;
+
+CREATE INDEX user_name_trgm
+ON Users
+USING GIN ((name::text) gin_trgm_ops);
+
 CREATE INDEX store_ID
 ON Store
 USING BTREE (storeID);
@@ -17,3 +25,31 @@ CREATE INDEX product_name
 ON Product
 USING BTREE (productName);
 
+CREATE INDEX store_location
+ON Store
+USING BTREE (latitude, longitude);
+
+CREATE INDEX product_sales_total
+ON ProductSales
+USING BTREE (totalUnits DESC);
+
+CREATE INDEX product_sales_store_total
+ON ProductSales
+USING BTREE (storeID, totalUnits DESC);
+
+CREATE INDEX order_customer_number
+ON Orders
+USING BTREE (customerID, orderNumber DESC);
+
+CREATE INDEX update_manager
+ON ProductUpdates
+USING BTREE (managerID, updatedOn DESC, updateNumber DESC);
+
+CREATE INDEX update_store
+ON ProductUpdates
+USING BTREE (storeID, updatedOn DESC, updateNumber DESC);
+
+CREATE INDEX update_time
+ON ProductUpdates
+USING BTREE (updatedOn DESC, updateNumber DESC);
+
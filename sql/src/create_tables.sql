@@ -5,6 +5,9 @@ DROP TABLE IF EXISTS Warehouse CASCADE;
 DROP TABLE IF EXISTS Orders CASCADE;
 DROP TABLE IF EXISTS ProductSupplyRequests CASCADE;
 DROP TABLE IF EXISTS ProductUpdates CASCADE;
+DROP TABLE IF EXISTS ProductStockSlots CASCADE;
+DROP TABLE IF EXISTS ProductSales CASCADE;
+DROP TABLE IF EXISTS ProductSalesDelta CASCADE;
 
 CREATE TABLE Users ( userID serial,
                      name char(50) NOT NULL,
@@ -76,3 +79,40 @@ CREATE TABLE ProductUpdates (
                         	FOREIGN KEY(managerID) REFERENCES Users(userID),
                         	FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
 );
+
+-- Stock of hot products split over several rows so concurrent orders lock
+-- different rows; see enable_stock_slots() in triggers.sql.  While a
+-- product has slots, its Product.numberOfUnits is the sum folded back by
+-- fold_product_slots().  dirty marks slots changed since the last fold.
+CREATE TABLE ProductStockSlots (
+                            storeID integer NOT NULL,
+                            productName char(30) NOT NULL,
+                            slot integer NOT NULL,
+                            units integer NOT NULL CHECK (units >= 0),
+                            dirty boolean NOT NULL DEFAULT false,
+                            PRIMARY KEY(storeID, productName, slot),
+                            FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+                            ON DELETE CASCADE
+);
+
+-- Units sold and orders placed per product, for the popular products
+-- report.  Orders append to ProductSalesDelta (see triggers.sql) and
+-- fold_product_sales() adds the deltas up here, so hot products do not
+-- serialize on their aggregate row.
+CREATE TABLE ProductSales (
+                            storeID integer NOT NULL,
+                            productName char(30) NOT NULL,
+                            totalUnits bigint NOT NULL,
+                            orderCount bigint NOT NULL,
+                            PRIMARY KEY(storeID, productName),
+                            FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+                            ON DELETE CASCADE
+);
+
+CREATE TABLE ProductSalesDelta (
+                            storeID integer NOT NULL,
+                            productName char(30) NOT NULL,
+                            unitsOrdered integer NOT NULL,
+                            FOREIGN KEY(storeID, productName) REFERENCES Product(storeID, productName)
+                            ON DELETE CASCADE
+);
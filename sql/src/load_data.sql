@@ -1,7 +1,9 @@
+-- Sequences continue after the loaded rows, so a generated data set
+-- (see java/src/DataGenerator.java) loads the same way
 COPY Users
 FROM '/extra/gloza013/project/data/users.csv'
 WITH DELIMITER ',' CSV HEADER;
-ALTER SEQUENCE users_userID_seq RESTART 101;
+SELECT setval('users_userID_seq', MAX(userID)) FROM Users;
 
 COPY Store
 FROM '/extra/gloza013/project/data/stores.csv'
@@ -18,15 +20,22 @@ WITH DELIMITER ',' CSV HEADER;
 COPY Orders
 FROM '/extra/gloza013/project/data/orders.csv'
 WITH DELIMITER ',' CSV HEADER;
-ALTER SEQUENCE orders_orderNumber_seq RESTART 501;
+SELECT setval('orders_orderNumber_seq', MAX(orderNumber)) FROM Orders;
 
 
 COPY ProductSupplyRequests
 FROM '/extra/gloza013/project/data/productSupplyRequests.csv'
 WITH DELIMITER ',' CSV HEADER;
-ALTER SEQUENCE productsupplyrequests_requestNumber_seq RESTART 11;
+SELECT setval('productsupplyrequests_requestNumber_seq', MAX(requestNumber)) FROM ProductSupplyRequests;
 
 COPY ProductUpdates
 FROM '/extra/gloza013/project/data/productUpdates.csv'
 WITH DELIMITER ',' CSV HEADER;
-ALTER SEQUENCE productupdates_updateNumber_seq RESTART 51;
+SELECT setval('productupdates_updateNumber_seq', MAX(updateNumber)) FROM ProductUpdates;
+
+-- Popular products aggregate over the loaded orders
+TRUNCATE ProductSalesDelta;
+INSERT INTO ProductSales(storeID, productName, totalUnits, orderCount)
+SELECT storeID, productName, SUM(unitsOrdered), COUNT(*)
+FROM Orders
+GROUP BY storeID, productName;
@@ -0,0 +1,112 @@
+--  Scale Data --
+--  Multiplies the loaded data set by a scale factor for benchmarks, e.g.
+--
+--     psql -v scale=10 <db> < scale_data.sql
+--
+--  Copy k (1 .. scale-1) of every row gets its keys shifted by k times the
+--  largest key loaded, so orders, updates and requests of a copy point at
+--  the copy's users, stores and warehouses.  Users and stores are moved a
+--  little so the copies do not sit on top of each other.  Run it once on a
+--  freshly loaded database; running it again multiplies again.
+
+BEGIN;
+
+-- orders and requests are copied as they are, not placed again
+ALTER TABLE Orders DISABLE TRIGGER USER;
+ALTER TABLE ProductSupplyRequests DISABLE TRIGGER USER;
+ALTER TABLE ProductUpdates DISABLE TRIGGER USER;
+
+CREATE TEMP TABLE base ON COMMIT DROP AS
+SELECT (SELECT MAX(userID) FROM Users) AS users,
+       (SELECT MAX(storeID) FROM Store) AS stores,
+       (SELECT MAX(WarehouseID) FROM Warehouse) AS warehouses,
+       (SELECT MAX(orderNumber) FROM Orders) AS orders,
+       (SELECT MAX(requestNumber) FROM ProductSupplyRequests) AS requests,
+       (SELECT MAX(updateNumber) FROM ProductUpdates) AS updates;
+
+INSERT INTO Users(userID, name, password, latitude, longitude, type)
+SELECT u.userID + k * b.users,
+       rtrim(u.name) || '_' || k,
+       u.password,
+       LEAST(99.999999, GREATEST(0, u.latitude + (random() - 0.5) * 2))::decimal(8,6),
+       LEAST(99.999999, GREATEST(0, u.longitude + (random() - 0.5) * 2))::decimal(9,6),
+       u.type
+FROM Users u, base b, generate_series(1, :scale - 1) AS k
+WHERE u.userID <= b.users;
+
+INSERT INTO Store(storeID, name, latitude, longitude, managerID, dateEstablished)
+SELECT s.storeID + k * b.stores,
+       s.name,
+       LEAST(99.999999, GREATEST(0, s.latitude + (random() - 0.5) * 2))::decimal(8,6),
+       LEAST(99.999999, GREATEST(0, s.longitude + (random() - 0.5) * 2))::decimal(9,6),
+       s.managerID + k * b.users,
+       s.dateEstablished
+FROM Store s, base b, generate_series(1, :scale - 1) AS k
+WHERE s.storeID <= b.stores;
+
+INSERT INTO Product(storeID, productName, numberOfUnits, pricePerUnit)
+SELECT p.storeID + k * b.stores, p.productName, p.numberOfUnits, p.pricePerUnit
+FROM Product p, base b, generate_series(1, :scale - 1) AS k
+WHERE p.storeID <= b.stores;
+
+INSERT INTO Warehouse(WarehouseID, area, latitude, longitude)
+SELECT w.WarehouseID + k * b.warehouses, w.area, w.latitude, w.longitude
+FROM Warehouse w, base b, generate_series(1, :scale - 1) AS k
+WHERE w.WarehouseID <= b.warehouses;
+
+INSERT INTO Orders(orderNumber, customerID, storeID, productName, unitsOrdered, orderTime)
+SELECT o.orderNumber + k * b.orders,
+       o.customerID + k * b.users,
+       o.storeID + k * b.stores,
+       o.productName, o.unitsOrdered, o.orderTime
+FROM Orders o, base b, generate_series(1, :scale - 1) AS k
+WHERE o.orderNumber <= b.orders;
+
+INSERT INTO ProductSupplyRequests(requestNumber, managerID, warehouseID, storeID, productName, unitsRequested)
+SELECT r.requestNumber + k * b.requests,
+       r.managerID + k * b.users,
+       r.warehouseID + k * b.warehouses,
+       r.storeID + k * b.stores,
+       r.productName, r.unitsRequested
+FROM ProductSupplyRequests r, base b, generate_series(1, :scale - 1) AS k
+WHERE r.requestNumber <= b.requests;
+
+INSERT INTO ProductUpdates(updateNumber, managerID, storeID, productName, updatedOn)
+SELECT u.updateNumber + k * b.updates,
+       u.managerID + k * b.users,
+       u.storeID + k * b.stores,
+       u.productName, u.updatedOn
+FROM ProductUpdates u, base b, generate_series(1, :scale - 1) AS k
+WHERE u.updateNumber <= b.updates;
+
+ALTER TABLE Orders ENABLE TRIGGER USER;
+ALTER TABLE ProductSupplyRequests ENABLE TRIGGER USER;
+ALTER TABLE ProductUpdates ENABLE TRIGGER USER;
+
+-- Popular products aggregate over every order
+TRUNCATE ProductSalesDelta;
+TRUNCATE ProductSales;
+INSERT INTO ProductSales(storeID, productName, totalUnits, orderCount)
+SELECT storeID, productName, SUM(unitsOrdered), COUNT(*)
+FROM Orders
+GROUP BY storeID, productName;
+
+-- New rows continue after the copies
+SELECT setval('users_userID_seq', (SELECT MAX(userID) FROM Users));
+DO $$
+BEGIN
+   IF to_regclass('porder_sequence') IS NOT NULL THEN
+      PERFORM setval('porder_sequence', (SELECT MAX(orderNumber) FROM Orders));
+   END IF;
+   IF to_regclass('prequest_sequence') IS NOT NULL THEN
+      PERFORM setval('prequest_sequence', (SELECT MAX(requestNumber) FROM ProductSupplyRequests));
+   END IF;
+   IF to_regclass('pupdate_sequence') IS NOT NULL THEN
+      PERFORM setval('pupdate_sequence', (SELECT MAX(updateNumber) FROM ProductUpdates));
+   END IF;
+END
+$$;
+
+COMMIT;
+
+ANALYZE;
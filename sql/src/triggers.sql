@@ -2,6 +2,8 @@
 --  Request Trigger --
 DROP SEQUENCE IF EXISTS prequest_sequence;
 CREATE SEQUENCE prequest_sequence START WITH 30;
+-- a larger loaded data set continues after its last request
+SELECT setval('prequest_sequence', MAX(requestNumber)) FROM ProductSupplyRequests HAVING MAX(requestNumber) >= 30;
 
 CREATE OR REPLACE LANGUAGE plpgsql;
 CREATE OR REPLACE FUNCTION product_requests()
@@ -12,11 +14,20 @@ BEGIN
     -- Insert serial
     NEW.requestNumber = nextval('prequest_sequence');
 
-    -- Update stock
-    UPDATE Product AS p 
-        SET numberOfUnits = numberOfUnits + NEW.unitsRequested
-        WHERE NEW.storeID = p.storeID
-	AND NEW.productName = p.productName;
+    -- Update stock; slotted products get the units in slot 0 and
+    -- fold_stock_slots() spreads them out
+    UPDATE ProductStockSlots AS s
+        SET units = units + NEW.unitsRequested, dirty = true
+        WHERE NEW.storeID = s.storeID
+        AND NEW.productName = s.productName
+        AND s.slot = 0;
+
+    IF NOT FOUND THEN
+       UPDATE Product AS p 
+           SET numberOfUnits = numberOfUnits + NEW.unitsRequested
+           WHERE NEW.storeID = p.storeID
+	   AND NEW.productName = p.productName;
+    END IF;
 
     RETURN new;
 END;
@@ -36,6 +47,7 @@ CREATE TRIGGER product_supply_table
 -- Update Trigger --
 DROP SEQUENCE IF EXISTS pupdate_sequence;
 CREATE SEQUENCE pupdate_sequence START WITH 51;
+SELECT setval('pupdate_sequence', MAX(updateNumber)) FROM ProductUpdates HAVING MAX(updateNumber) >= 51;
 
 CREATE OR REPLACE LANGUAGE plpgsql;
 CREATE OR REPLACE FUNCTION product_updates()
@@ -63,6 +75,7 @@ CREATE TRIGGER product_update_table
 --  Order Trigger --
 DROP SEQUENCE IF EXISTS porder_sequence;
 CREATE SEQUENCE porder_sequence START WITH 550;
+SELECT setval('porder_sequence', MAX(orderNumber)) FROM Orders HAVING MAX(orderNumber) >= 550;
 
 CREATE OR REPLACE LANGUAGE plpgsql;
 CREATE OR REPLACE FUNCTION product_orders()
@@ -74,11 +87,24 @@ BEGIN
    NEW.orderNumber = nextval('porder_sequence');
    NEW.orderTime = CURRENT_TIMESTAMP(0);
 
-   -- Take value out of product unit value
+   -- Hot products keep their stock in slots instead of the Product row
+   IF EXISTS (SELECT 1 FROM ProductStockSlots s
+              WHERE NEW.storeID = s.storeID
+              AND NEW.productName = s.productName) THEN
+      PERFORM take_slot_stock(NEW.storeID, NEW.productName, NEW.unitsOrdered);
+      RETURN new;
+   END IF;
+
+   -- Take value out of product unit value, never below zero
    UPDATE Product AS p
         SET numberOfUnits = numberOfUnits - NEW.unitsOrdered
         WHERE NEW.storeID = p.storeID
-        AND NEW.productName = p.productName;
+        AND NEW.productName = p.productName
+        AND p.numberOfUnits >= NEW.unitsOrdered;
+
+   IF NOT FOUND THEN
+      RAISE EXCEPTION 'Not enough stock of % at store %', NEW.productName, NEW.storeID;
+   END IF;
 
    RETURN new;
 
@@ -91,3 +117,468 @@ CREATE TRIGGER product_order_table
         BEFORE INSERT ON Orders
         FOR EACH ROW
         EXECUTE PROCEDURE product_orders();
+
+-- Places an order in one call: locks the product row, checks the stock and
+-- inserts the order (the trigger above takes the units out of stock).
+-- Returns the order number, -1 when the stock is too low or -2 when the
+-- store does not hold the product.
+CREATE OR REPLACE FUNCTION place_order(p_customer integer, p_store integer,
+                                       p_product char(30), p_units integer)
+RETURNS integer AS
+$BODY$
+DECLARE
+   units_left integer;
+   order_number integer;
+BEGIN
+
+   -- Slotted products: the trigger takes the units from one slot and
+   -- raises when there are not enough, the Product row is not locked
+   IF EXISTS (SELECT 1 FROM ProductStockSlots
+              WHERE storeID = p_store
+              AND productName = p_product) THEN
+      BEGIN
+         INSERT INTO Orders(customerID, storeID, productName, unitsOrdered)
+              VALUES (p_customer, p_store, p_product, p_units)
+              RETURNING orderNumber INTO order_number;
+      EXCEPTION WHEN raise_exception THEN
+         RETURN -1;
+      END;
+      RETURN order_number;
+   END IF;
+
+   SELECT numberOfUnits INTO units_left
+        FROM Product
+        WHERE storeID = p_store
+        AND productName = p_product
+        FOR UPDATE;
+
+   IF NOT FOUND THEN
+      RETURN -2;
+   END IF;
+   IF units_left < p_units THEN
+      RETURN -1;
+   END IF;
+
+   INSERT INTO Orders(customerID, storeID, productName, unitsOrdered)
+        VALUES (p_customer, p_store, p_product, p_units)
+        RETURNING orderNumber INTO order_number;
+
+   RETURN order_number;
+
+END;
+$BODY$
+LANGUAGE PLPGSQL VOLATILE;
+
+
+
+--  Catalog Change Triggers --
+--  The client caches Store, Product and Warehouse rows and drops them when
+--  it hears these channels (see CatalogListener.java).  Product only
+--  notifies when a row is added or removed or its name, price or store is
+--  set: orders, supply requests and slot folds only set numberOfUnits and
+--  would otherwise clear every client's product cache many times a second.
+--  set_product_units() notifies by itself, so a manager's stock change is
+--  still seen everywhere.  The place_order checks read the live stock, so
+--  a cached numberOfUnits is only shown, never trusted.
+CREATE OR REPLACE LANGUAGE plpgsql;
+CREATE OR REPLACE FUNCTION store_changed()
+RETURNS "trigger" AS
+$BODY$
+BEGIN
+   NOTIFY store_changed;
+   RETURN NULL;
+END;
+$BODY$
+LANGUAGE PLPGSQL VOLATILE;
+
+DROP TRIGGER IF EXISTS store_changed_table ON Store;
+CREATE TRIGGER store_changed_table
+        AFTER INSERT OR UPDATE OR DELETE ON Store
+        FOR EACH STATEMENT
+        EXECUTE PROCEDURE store_changed();
+
+CREATE OR REPLACE FUNCTION product_changed()
+RETURNS "trigger" AS
+$BODY$
+BEGIN
+   NOTIFY product_changed;
+   RETURN NULL;
+END;
+$BODY$
+LANGUAGE PLPGSQL VOLATILE;
+
+DROP TRIGGER IF EXISTS product_changed_table ON Product;
+CREATE TRIGGER product_changed_table
+        AFTER INSERT OR DELETE OR UPDATE OF productName, pricePerUnit, storeID ON Product
+        FOR EACH STATEMENT
+        EXECUTE PROCEDURE product_changed();
+
+CREATE OR REPLACE FUNCTION warehouse_changed()
+RETURNS "trigger" AS
+$BODY$
+BEGIN
+   NOTIFY warehouse_changed;
+   RETURN NULL;
+END;
+$BODY$
+LANGUAGE PLPGSQL VOLATILE;
+
+DROP TRIGGER IF EXISTS warehouse_changed_table ON Warehouse;
+CREATE TRIGGER warehouse_changed_table
+        AFTER INSERT OR UPDATE OR DELETE ON Warehouse
+        FOR EACH STATEMENT
+        EXECUTE PROCEDURE warehouse_changed();
+
+
+
+--  Stock Slots --
+--  A hot product's stock can be split over several ProductStockSlots rows
+--  so concurrent orders decrement different rows instead of queueing on
+--  the one Product row.  No slot ever goes below zero.  While a product is
+--  slotted, Product.numberOfUnits is the total as of the last fold.
+--  Orders and supply requests mark the slots they change dirty; every
+--  retail.stock.foldMillis the client folds the dirty products, each in a
+--  transaction of its own, and skips those an open order is holding.
+--
+--    SELECT enable_stock_slots(store, product, slots);
+--    SELECT disable_stock_slots(store, product);
+--    SELECT set_product_units(store, product, units);
+
+-- Takes units out of the slots of a product; raises when they do not hold
+-- enough.  Called by the product_orders trigger.
+CREATE OR REPLACE FUNCTION take_slot_stock(p_store integer, p_product char(30), p_units integer)
+RETURNS void AS
+$BODY$
+DECLARE
+   chosen integer;
+   needed integer;
+   taken integer;
+   r record;
+BEGIN
+
+   -- Fast path: any slot with enough units that no other order holds
+   SELECT slot INTO chosen
+        FROM ProductStockSlots
+        WHERE storeID = p_store
+        AND productName = p_product
+        AND units >= p_units
+        ORDER BY random()
+        LIMIT 1
+        FOR UPDATE SKIP LOCKED;
+
+   IF FOUND THEN
+      UPDATE ProductStockSlots
+           SET units = units - p_units, dirty = true
+           WHERE storeID = p_store
+           AND productName = p_product
+           AND slot = chosen;
+      RETURN;
+   END IF;
+
+   -- Slow path: lock the slots in order and drain them one after another;
+   -- the exception below undoes the partial drain
+   needed := p_units;
+   FOR r IN SELECT slot, units
+            FROM ProductStockSlots
+            WHERE storeID = p_store
+            AND productName = p_product
+            ORDER BY slot
+            FOR UPDATE LOOP
+      EXIT WHEN needed = 0;
+      taken := LEAST(r.units, needed);
+      IF taken > 0 THEN
+         UPDATE ProductStockSlots
+              SET units = units - taken, dirty = true
+              WHERE storeID = p_store
+              AND productName = p_product
+              AND slot = r.slot;
+         needed := needed - taken;
+      END IF;
+   END LOOP;
+
+   IF needed > 0 THEN
+      RAISE EXCEPTION 'Not enough stock of % at store %', p_product, p_store;
+   END IF;
+
+END;
+$BODY$
+LANGUAGE PLPGSQL VOLATILE;
+
+-- Spreads a total evenly over the existing slots 0..n-1 of a product.
+-- The caller holds the slot locks.
+CREATE OR REPLACE FUNCTION spread_slot_stock(p_store integer, p_product char(30), p_total integer)
+RETURNS void AS
+$BODY$
+DECLARE
+   n integer;
+BEGIN
+
+   SELECT COUNT(*) INTO n
+        FROM ProductStockSlots
+        WHERE storeID = p_store
+        AND productName = p_product;
+
+   UPDATE ProductStockSlots
+        SET units = p_total / n + CASE WHEN slot < p_total % n THEN 1 ELSE 0 END,
+            dirty = false
+        WHERE storeID = p_store
+        AND productName = p_product;
+
+END;
+$BODY$
+LANGUAGE PLPGSQL VOLATILE;
+
+-- Copies the slot total of a product into Product.numberOfUnits and evens
+-- the slots out again.  Returns false when nothing changed.
+CREATE OR REPLACE FUNCTION fold_product_slots(p_store integer, p_product char(30))
+RETURNS boolean AS
+$BODY$
+DECLARE
+   total integer;
+   folded integer;
+BEGIN
+
+   PERFORM 1
+        FROM ProductStockSlots
+        WHERE storeID = p_store
+        AND productName = p_product
+        ORDER BY slot
+        FOR UPDATE;
+
+   SELECT SUM(units) INTO total
+        FROM ProductStockSlots
+        WHERE storeID = p_store
+        AND productName = p_product;
+
+   SELECT numberOfUnits INTO folded
+        FROM Product
+        WHERE storeID = p_store
+        AND productName = p_product;
+
+   IF total IS NULL THEN
+      RETURN false;
+   END IF;
+   IF total = folded THEN
+      UPDATE ProductStockSlots
+           SET dirty = false
+           WHERE storeID = p_store
+           AND productName = p_product
+           AND dirty;
+      RETURN false;
+   END IF;
+
+   PERFORM spread_slot_stock(p_store, p_product, total);
+   UPDATE Product
+        SET numberOfUnits = total
+        WHERE storeID = p_store
+        AND productName = p_product;
+   RETURN true;
+
+END;
+$BODY$
+LANGUAGE PLPGSQL VOLATILE;
+
+-- Folds a product unless an open order holds one of its slots, in which
+-- case a later fold picks it up.  Returns false when skipped or unchanged.
+-- The client calls it once per dirty product, so the slot locks are held
+-- for one product only.
+CREATE OR REPLACE FUNCTION try_fold_product_slots(p_store integer, p_product char(30))
+RETURNS boolean AS
+$BODY$
+DECLARE
+   slots integer;
+   locked integer;
+BEGIN
+
+   SELECT COUNT(*) INTO slots
+        FROM ProductStockSlots
+        WHERE storeID = p_store
+        AND productName = p_product;
+
+   SELECT COUNT(*) INTO locked
+        FROM (SELECT slot
+              FROM ProductStockSlots
+              WHERE storeID = p_store
+              AND productName = p_product
+              ORDER BY slot
+              FOR UPDATE SKIP LOCKED) AS s;
+
+   IF slots = 0 OR locked < slots THEN
+      RETURN false;
+   END IF;
+
+   RETURN fold_product_slots(p_store, p_product);
+
+END;
+$BODY$
+LANGUAGE PLPGSQL VOLATILE;
+
+-- Folds every dirty product in one transaction, for use by hand; returns
+-- how many changed.  Concurrent callers return 0 instead of waiting.
+CREATE OR REPLACE FUNCTION fold_stock_slots()
+RETURNS integer AS
+$BODY$
+DECLARE
+   r record;
+   changed integer := 0;
+BEGIN
+
+   IF NOT pg_try_advisory_xact_lock(hashtext('fold_stock_slots')) THEN
+      RETURN 0;
+   END IF;
+
+   FOR r IN SELECT DISTINCT storeID, productName
+            FROM ProductStockSlots
+            WHERE dirty
+            ORDER BY storeID, productName LOOP
+      IF try_fold_product_slots(r.storeID, r.productName) THEN
+         changed := changed + 1;
+      END IF;
+   END LOOP;
+
+   RETURN changed;
+
+END;
+$BODY$
+LANGUAGE PLPGSQL VOLATILE;
+
+-- Splits the stock of a product over p_slots slot rows.
+CREATE OR REPLACE FUNCTION enable_stock_slots(p_store integer, p_product char(30), p_slots integer)
+RETURNS void AS
+$BODY$
+DECLARE
+   total integer;
+BEGIN
+
+   IF p_slots < 1 THEN
+      RAISE EXCEPTION 'A product needs at least one stock slot';
+   END IF;
+
+   PERFORM disable_stock_slots(p_store, p_product);
+
+   SELECT numberOfUnits INTO total
+        FROM Product
+        WHERE storeID = p_store
+        AND productName = p_product
+        FOR UPDATE;
+
+   IF NOT FOUND THEN
+      RAISE EXCEPTION 'Store % does not hold %', p_store, p_product;
+   END IF;
+
+   INSERT INTO ProductStockSlots(storeID, productName, slot, units)
+        SELECT p_store, p_product, g, total / p_slots + CASE WHEN g < total % p_slots THEN 1 ELSE 0 END
+        FROM generate_series(0, p_slots - 1) AS g;
+
+END;
+$BODY$
+LANGUAGE PLPGSQL VOLATILE;
+
+-- Folds the slots of a product back into its Product row and drops them.
+CREATE OR REPLACE FUNCTION disable_stock_slots(p_store integer, p_product char(30))
+RETURNS void AS
+$BODY$
+BEGIN
+
+   PERFORM fold_product_slots(p_store, p_product);
+   DELETE FROM ProductStockSlots
+        WHERE storeID = p_store
+        AND productName = p_product;
+
+END;
+$BODY$
+LANGUAGE PLPGSQL VOLATILE;
+
+-- Sets the stock of a product, slotted or not.  Returns the new stock.
+-- Locks the slots before the Product row, in the order of
+-- fold_product_slots(), so it cannot deadlock with a fold.
+CREATE OR REPLACE FUNCTION set_product_units(p_store integer, p_product char(30), p_units integer)
+RETURNS integer AS
+$BODY$
+DECLARE
+   slotted boolean;
+BEGIN
+
+   PERFORM 1
+        FROM ProductStockSlots
+        WHERE storeID = p_store
+        AND productName = p_product
+        ORDER BY slot
+        FOR UPDATE;
+   slotted := FOUND;
+
+   UPDATE Product
+        SET numberOfUnits = p_units
+        WHERE storeID = p_store
+        AND productName = p_product;
+   -- product_changed_table ignores stock-only updates
+   NOTIFY product_changed;
+
+   IF slotted THEN
+      PERFORM spread_slot_stock(p_store, p_product, p_units);
+   END IF;
+
+   RETURN p_units;
+
+END;
+$BODY$
+LANGUAGE PLPGSQL VOLATILE;
+
+
+
+--  Sales Trigger --
+--  Every order appends its units to ProductSalesDelta; fold_product_sales()
+--  adds the pending deltas into ProductSales (the client runs it every
+--  retail.stock.foldMillis).  Deltas of transactions that have not
+--  committed yet are invisible to the fold and picked up by a later one.
+CREATE OR REPLACE FUNCTION product_sales()
+RETURNS "trigger" AS
+$BODY$
+BEGIN
+
+   INSERT INTO ProductSalesDelta(storeID, productName, unitsOrdered)
+        VALUES (NEW.storeID, NEW.productName, NEW.unitsOrdered);
+
+   RETURN NULL;
+
+END;
+$BODY$
+LANGUAGE PLPGSQL VOLATILE;
+
+DROP TRIGGER IF EXISTS product_sales_table ON Orders;
+CREATE TRIGGER product_sales_table
+        AFTER INSERT ON Orders
+        FOR EACH ROW
+        EXECUTE PROCEDURE product_sales();
+
+-- Moves the pending deltas into ProductSales; returns how many products
+-- changed.  Concurrent callers from other clients return 0 instead.
+CREATE OR REPLACE FUNCTION fold_product_sales()
+RETURNS integer AS
+$BODY$
+DECLARE
+   changed integer;
+BEGIN
+
+   IF NOT pg_try_advisory_xact_lock(hashtext('fold_product_sales')) THEN
+      RETURN 0;
+   END IF;
+
+   WITH folded AS (
+        DELETE FROM ProductSalesDelta
+        RETURNING storeID, productName, unitsOrdered)
+   INSERT INTO ProductSales AS ps(storeID, productName, totalUnits, orderCount)
+        SELECT storeID, productName, SUM(unitsOrdered), COUNT(*)
+        FROM folded
+        GROUP BY storeID, productName
+        ORDER BY storeID, productName
+   ON CONFLICT (storeID, productName) DO UPDATE
+        SET totalUnits = ps.totalUnits + EXCLUDED.totalUnits,
+            orderCount = ps.orderCount + EXCLUDED.orderCount;
+
+   GET DIAGNOSTICS changed = ROW_COUNT;
+   RETURN changed;
+
+END;
+$BODY$
+LANGUAGE PLPGSQL VOLATILE;